@@ -38,7 +38,7 @@ public class ChatClient{
             System.exit(0);
         }
 
-        //Accepts user input for the username, which is concatenated to messages sent to the server
+        //Accepts user input for the username, which is sent to the server once when connecting
         System.out.println("Please enter a UserName:");
         BufferedReader buffReader = new BufferedReader(new InputStreamReader(System.in));
         try {
@@ -52,6 +52,7 @@ public class ChatClient{
         //Creates new object for ClientCommunicationLogic, which holds the bulk of the threads "run" methods
         communicationLogic = new ClientCommunicationLogic(socket, false);
         communicationLogic.setChatClient(this);
+        socket = communicationLogic.handshake(userName);
 
         br = new BufferedReader(new InputStreamReader(System.in));
 
@@ -64,7 +65,7 @@ public class ChatClient{
                     userInput = br.readLine();
                 } catch (IOException e) {
                 }
-                communicationLogic.runOut(userName + ": " + userInput);
+                communicationLogic.runOut(userInput);
             }
         });
 
@@ -0,0 +1,437 @@
+/**
+ * The binary frame format shared by the client and the server.
+ *
+ * A client that supports frames starts by sending MAGIC followed by a HELLO frame holding its user name, and the
+ * server replies with a WELCOME frame. A client that sends anything else, or nothing at all within
+ * DETECT_TIMEOUT_MILLIS, is served with the original line protocol instead.
+ *
+ * Every frame is an int length, a type byte and a payload, where the length counts the type byte and the payload.
+ * Text is always UTF-8, so a message may contain any characters, including ": " and new lines.
+ *
+ * HELLO    client to server: version byte, flags byte, user name
+ * WELCOME  server to client: version byte, flags byte, int client id
+ * MESSAGE  client to server: text. Server to client: long sequence number, "name: text", or a room frame as below
+ *          holding the room the message was sent to if FLAG_ROOMS was agreed in WELCOME
+ * HISTORY  server to client: long sequence number, "name: text" for a message sent before the client asked for it,
+ *          or a room frame if FLAG_ROOMS was agreed
+ * NOTICE   server to client: text from the server itself
+ * EXIT     client to server: no payload, asks the server to close, which is only done for an admin
+ * SHUTDOWN server to client: text saying why the server is closing. The server then sends what is still queued for
+ *          the client and closes the connection.
+ * COMPRESSED server to client: int length once inflated, then one or more whole frames compressed with Deflater.
+ *          Only sent to clients that set FLAG_COMPRESS in HELLO and had it agreed to in WELCOME.
+ * PING     server to client: long token, sent when the client has been silent for a while
+ * PONG     client to server: the token from the PING it answers
+ * SYNC     client to server: sent straight after a WELCOME that agreed FLAG_RESUME, in the same form as a follower's
+ *          SYNC below, with the rooms the client was in, the room it sent messages to last, and the newest message it
+ *          saw in each (-1 if none). The server puts the client back in those rooms and sends only what it missed.
+ *
+ * Server nodes in a cluster talk to each other with the same frames on a separate port. A follower starts with MAGIC,
+ * the leader answers with an AUTH challenge, and the follower sends its AUTH answer and a SYNC frame. The room frames
+ * carry a long sequence number, a byte room name length, the room name and the text.
+ * AUTH     leader to follower: 16 random bytes. Follower to leader: their HMAC-SHA256 keyed with the cluster secret
+ * SYNC     follower to leader: version byte, then for each room it holds the room name length, the room name and the
+ *          long sequence number of its newest message
+ * RELAY    follower to leader: a room frame with sequence number -1, for a message typed by a user on the follower
+ * ORDERED  leader to follower: a room frame for a message numbered by the leader, in sequence order for each room
+ */
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public class ChatProtocol {
+
+    public static final byte VERSION = 1;
+    //A line client never starts with a zero byte, so the first byte is enough to tell the protocols apart
+    public static final byte[] MAGIC = {0, 'C', 'H', 'T'};
+    public static final int DETECT_TIMEOUT_MILLIS = 200;
+    public static final int MAX_FRAME_LENGTH = 1024 * 1024;
+    //The most characters in a message, counting the sender's name and ": ". At up to 3 bytes a character, with the
+    //sequence number and room name added when it is sent on, a message still fits well within MAX_FRAME_LENGTH.
+    public static final int MAX_MESSAGE_LENGTH = 64 * 1024;
+
+    public static final byte HELLO = 1;
+    public static final byte WELCOME = 2;
+    public static final byte MESSAGE = 3;
+    public static final byte HISTORY = 4;
+    public static final byte NOTICE = 5;
+    public static final byte EXIT = 6;
+    public static final byte COMPRESSED = 7;
+    public static final byte PING = 8;
+    public static final byte PONG = 9;
+    public static final byte SYNC = 10;
+    public static final byte RELAY = 11;
+    public static final byte ORDERED = 12;
+    public static final byte SHUTDOWN = 13;
+    public static final byte AUTH = 14;
+
+    //HELLO and WELCOME flags
+    public static final byte FLAG_COMPRESS = 1;
+    //Set by a client that is reconnecting, which then sends a SYNC frame instead of being put in the default room
+    public static final byte FLAG_RESUME = 2;
+    //Set by a client that reads the room name from MESSAGE and HISTORY frames rather than from the text shown
+    public static final byte FLAG_ROOMS = 4;
+    //A compressed batch of history may hold many frames
+    public static final int MAX_INFLATED_LENGTH = 64 * MAX_FRAME_LENGTH;
+
+    /**
+     * A single decoded frame
+     */
+    public static class Frame {
+
+        private final byte type;
+        private final byte[] payload;
+
+        public Frame(byte type, byte[] payload) {
+            this.type = type;
+            this.payload = payload;
+        }
+
+        public byte getType() {
+            return type;
+        }
+
+        /**
+         * @param offset the number of bytes before the text starts
+         * @return the payload from the offset decoded as UTF-8
+         */
+        public String text(int offset) {
+            return new String(payload, offset, payload.length - offset, StandardCharsets.UTF_8);
+        }
+
+        public long getLong(int offset) {
+            return ByteBuffer.wrap(payload).getLong(offset);
+        }
+
+        /**
+         * @return the long at the start of a MESSAGE, HISTORY, PING or room frame
+         * @throws IOException if the frame is too short to hold one
+         */
+        public long sequence() throws IOException {
+            if (payload.length < 8) {
+                throw new IOException("Frame too short for its sequence number");
+            }
+            return getLong(0);
+        }
+
+        public int getInt(int offset) {
+            return ByteBuffer.wrap(payload).getInt(offset);
+        }
+
+        public byte getByte(int offset) {
+            return payload[offset];
+        }
+
+        /**
+         * @return a copy of the whole payload
+         */
+        public byte[] getBytes() {
+            return payload.clone();
+        }
+
+        /**
+         * @param offset the number of bytes before the text starts
+         * @param length the length of the text in bytes
+         * @return that part of the payload decoded as UTF-8
+         */
+        public String text(int offset, int length) {
+            return new String(payload, offset, length, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * @return the room name in a room frame
+         * @throws IOException if the frame is too short for its room name
+         */
+        public String room() throws IOException {
+            return text(9, roomLength());
+        }
+
+        /**
+         * @return the message in a room frame
+         * @throws IOException if the frame is too short for its room name
+         */
+        public String roomText() throws IOException {
+            return text(9 + roomLength());
+        }
+
+        private int roomLength() throws IOException {
+            int length = payload.length < 9 ? -1 : payload[8] & 0xff;
+            if (length < 0 || 9 + length > payload.length) {
+                throw new IOException("Invalid room frame");
+            }
+            return length;
+        }
+
+        /**
+         * @return the length of the whole frame as it was sent, including its length and type
+         */
+        public int length() {
+            return 5 + payload.length;
+        }
+    }
+
+    /**
+     * Builds a complete frame
+     * @param type the frame type
+     * @param prefix bytes to place before the text (a sequence number or handshake fields), may be empty
+     * @param text the text, encoded as UTF-8, may be null
+     * @return the frame including its length
+     */
+    public static byte[] frame(byte type, byte[] prefix, String text) {
+        byte[] textBytes = text == null ? new byte[0] : text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(5 + prefix.length + textBytes.length);
+        frame.putInt(1 + prefix.length + textBytes.length);
+        frame.put(type);
+        frame.put(prefix);
+        frame.put(textBytes);
+        return frame.array();
+    }
+
+    /**
+     * Builds a room frame
+     * @param type the frame type
+     * @param sequence the message's sequence number in its room, or -1 if it has not been given one yet
+     * @param room the room name, which RoomRegistry keeps to 32 ASCII characters
+     * @param text the message
+     * @return the frame including its length
+     */
+    public static byte[] roomFrame(byte type, long sequence, String room, String text) {
+        byte[] roomBytes = room.getBytes(StandardCharsets.UTF_8);
+        byte[] prefix = ByteBuffer.allocate(9 + roomBytes.length).putLong(sequence).put((byte) roomBytes.length)
+                .put(roomBytes).array();
+        return frame(type, prefix, text);
+    }
+
+    /**
+     * @param sequence a message's sequence number
+     * @return the sequence number as the 8 bytes placed before a message's text
+     */
+    public static byte[] sequencePrefix(long sequence) {
+        return ByteBuffer.allocate(8).putLong(sequence).array();
+    }
+
+    /**
+     * @param userName the name shown with this client's messages
+     * @param flags options the client would like to use
+     * @return MAGIC followed by a HELLO frame, which start the frame protocol
+     */
+    public static byte[] hello(String userName, byte flags) {
+        byte[] hello = frame(HELLO, new byte[]{VERSION, flags}, userName);
+        byte[] bytes = new byte[MAGIC.length + hello.length];
+        System.arraycopy(MAGIC, 0, bytes, 0, MAGIC.length);
+        System.arraycopy(hello, 0, bytes, MAGIC.length, hello.length);
+        return bytes;
+    }
+
+    /**
+     * Sends MAGIC and a HELLO frame to start the frame protocol
+     * @param out the socket's output stream
+     * @param userName the name shown with this client's messages
+     * @param flags options the client would like to use
+     * @throws IOException if the socket cannot be written to
+     */
+    public static void writeHello(OutputStream out, String userName, byte flags) throws IOException {
+        out.write(hello(userName, flags));
+        out.flush();
+    }
+
+    /**
+     * Builds a SYNC frame
+     * @param newest the newest sequence number held or seen in each room, in the order the rooms should be read
+     * @return the SYNC frame including its length
+     */
+    public static byte[] sync(Map<String, Long> newest) {
+        List<byte[]> entries = new ArrayList<>();
+        int length = 1;
+        for (Map.Entry<String, Long> room : newest.entrySet()) {
+            byte[] roomBytes = room.getKey().getBytes(StandardCharsets.UTF_8);
+            byte[] entry = ByteBuffer.allocate(9 + roomBytes.length).put((byte) roomBytes.length).put(roomBytes)
+                    .putLong(room.getValue()).array();
+            entries.add(entry);
+            length += entry.length;
+        }
+        ByteBuffer payload = ByteBuffer.allocate(length).put(VERSION);
+        for (byte[] entry : entries) {
+            payload.put(entry);
+        }
+        return frame(SYNC, payload.array(), null);
+    }
+
+    /**
+     * @param sync a SYNC frame
+     * @return the newest sequence number in each room, in the order they were sent
+     * @throws IOException if the frame was sent by a different version or is cut short
+     */
+    public static Map<String, Long> readSync(Frame sync) throws IOException {
+        if (sync.payload.length == 0 || sync.getByte(0) != VERSION) {
+            throw new IOException("Unsupported version");
+        }
+        LinkedHashMap<String, Long> newest = new LinkedHashMap<>();
+        int position = 1;
+        while (position < sync.payload.length) {
+            int roomLength = sync.getByte(position) & 0xff;
+            if (position + 9 + roomLength > sync.payload.length) {
+                throw new IOException("Incomplete SYNC frame");
+            }
+            newest.put(sync.text(position + 1, roomLength), sync.getLong(position + 1 + roomLength));
+            position += 9 + roomLength;
+        }
+        return newest;
+    }
+
+    /**
+     * Checks the first frame from a client before any of its fields are read
+     * @param hello the frame read after MAGIC
+     * @throws IOException if it is not a HELLO frame or is too short to hold the version and flags
+     */
+    public static void checkHello(Frame hello) throws IOException {
+        if (hello.getType() != HELLO || hello.payload.length < 2) {
+            throw new IOException("Expected a HELLO frame");
+        }
+    }
+
+    /**
+     * Checks the server's answer to HELLO before any of its fields are read
+     * @param welcome the first frame read from the server
+     * @throws IOException if it is not a WELCOME frame of this version or is too short to hold the flags
+     */
+    public static void checkWelcome(Frame welcome) throws IOException {
+        if (welcome.getType() != WELCOME || welcome.payload.length < 2 || welcome.payload[0] != VERSION) {
+            throw new IOException("Unexpected reply to HELLO");
+        }
+    }
+
+    /**
+     * Reads the rest of MAGIC after its first byte has been seen
+     * @param in the stream to read from
+     * @throws IOException if the bytes are not MAGIC
+     */
+    public static void readMagic(DataInputStream in) throws IOException {
+        for (int i = 1; i < MAGIC.length; i++) {
+            if (in.readByte() != MAGIC[i]) {
+                throw new IOException("Unknown protocol");
+            }
+        }
+    }
+
+    /**
+     * Waits for and reads a whole frame
+     * @param in the stream to read from
+     * @return the frame
+     * @throws IOException if the stream ends or the frame is not valid
+     */
+    public static Frame readFrame(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        checkLength(length);
+        byte type = in.readByte();
+        byte[] payload = new byte[length - 1];
+        in.readFully(payload);
+        return new Frame(type, payload);
+    }
+
+    /**
+     * Reads a whole frame from a buffer if one has fully arrived. Used by non-blocking readers.
+     * @param buffer the bytes received so far, ready for reading
+     * @return the frame, or null if it has not fully arrived, in which case the buffer is left unchanged
+     * @throws IOException if the frame is not valid
+     */
+    public static Frame readFrame(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 4) {
+            return null;
+        }
+        int length = buffer.getInt(buffer.position());
+        checkLength(length);
+        if (buffer.remaining() < 4 + length) {
+            return null;
+        }
+        buffer.getInt();
+        byte type = buffer.get();
+        byte[] payload = new byte[length - 1];
+        buffer.get(payload);
+        return new Frame(type, payload);
+    }
+
+    private static void checkLength(int length) throws IOException {
+        if (length < 1 || length > MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+    }
+
+    /**
+     * Compresses one or more whole frames into a single COMPRESSED frame. Speed is preferred over size, as this is
+     * done on the broadcast path.
+     * @param frames the frames, one after another
+     * @return the COMPRESSED frame including its length
+     */
+    public static byte[] compress(byte[] frames) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(frames);
+            deflater.finish();
+            ByteBuffer frame = ByteBuffer.allocate(9 + frames.length + 64);
+            frame.position(9);
+            while (!deflater.finished()) {
+                if (!frame.hasRemaining()) {
+                    frame = ByteBuffer.allocate(frame.capacity() * 2).put(frame.flip());
+                }
+                frame.position(frame.position() + deflater.deflate(frame.array(), frame.position(),
+                        frame.remaining()));
+            }
+            int length = frame.position();
+            frame.putInt(0, length - 4);
+            frame.put(4, COMPRESSED);
+            frame.putInt(5, frames.length);
+            byte[] result = new byte[length];
+            System.arraycopy(frame.array(), 0, result, 0, length);
+            return result;
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * @param compressed a COMPRESSED frame
+     * @return the frames it holds, ready to be read with readFrame
+     * @throws IOException if the frame cannot be inflated
+     */
+    public static ByteBuffer decompress(Frame compressed) throws IOException {
+        int length = compressed.payload.length < 4 ? -1 : compressed.getInt(0);
+        if (length < 0 || length > MAX_INFLATED_LENGTH) {
+            throw new IOException("Invalid inflated length: " + length);
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed.payload, 4, compressed.payload.length - 4);
+            byte[] frames = new byte[length];
+            int inflated = 0;
+            while (inflated < length && !inflater.finished()) {
+                int read = inflater.inflate(frames, inflated, length - inflated);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += read;
+            }
+            if (inflated != length) {
+                throw new IOException("Compressed frame ended early");
+            }
+            return ByteBuffer.wrap(frames);
+        }
+        catch (DataFormatException e) {
+            throw new IOException(e);
+        }
+        finally {
+            inflater.end();
+        }
+    }
+}
@@ -6,31 +6,114 @@
 
 import java.io.IOException;
 import java.net.*;
-import java.util.ArrayList;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class ChatServer {
 
+    //The most messages a single history command can fetch, and the most sent in one write
+    private static final int MAX_HISTORY_PAGE = 1000;
+    private static final int HISTORY_BATCH = 64;
+    private static final long THROTTLE_REPORT_MILLIS = 10000;
+    //The idle deadlines are checked ten times a second, and one turn of the wheel covers about 50 s
+    private static final long TIMER_TICK_MILLIS = 100;
+    private static final int TIMER_WHEEL_SIZE = 512;
+
     private ServerSocket serverSocket;
-    private ArrayList<ServerCommunicationLogic> clientCommunication = new ArrayList<>();
-    private ServerCommunicationLogic serverCommunicationLogic;
+    //Woken when the server shuts down, so the non-blocking accept loop sees its channel has closed
+    private volatile Selector acceptSelector;
+    private ConnectionSet clientCommunication = new ConnectionSet();
     private DataStore dataStore;
+    private ServerConfig config;
+    private RoomRegistry rooms = new RoomRegistry();
+    //Broadcasts share the read lock, so rooms never wait on each other. Shutdown takes the write lock, so its
+    //goodbye is queued after every broadcast already under way. Not synchronized, so that virtual threads do not pin
+    //their carrier.
+    private ReentrantReadWriteLock broadcastLock = new ReentrantReadWriteLock();
+    //Held while a message is numbered and queued for the room's members, and sent to the other nodes on a cluster
+    //leader, so members and nodes receive each room's messages in sequence order. Rooms are never removed and
+    //-maxrooms bounds how many there are.
+    private Map<String, ReentrantLock> publishLocks = new ConcurrentHashMap<>();
+    //The last room join each connection is waiting on, so its joins are answered in the order it asked for them
+    private Map<ClientConnection, CompletableFuture<Void>> pendingJoins = new ConcurrentHashMap<>();
+    private AtomicInteger clientIds = new AtomicInteger();
+    private AtomicInteger throttledConnections = new AtomicInteger();
+    private AtomicLong throttleCount = new AtomicLong();
+    private AtomicLong lastThrottleReport = new AtomicLong();
+    private TimerWheel timers;
+    //Null unless this server is one node of a cluster
+    private ClusterNode cluster;
+    //Connections whose user has given the admin token
+    private Set<ClientConnection> admins = ConcurrentHashMap.newKeySet();
+    private AtomicBoolean shuttingDown = new AtomicBoolean();
+    private ServerMetrics metrics;
 
 
     /**
-     * Creates new DataStore and ServerCommunication object and starts ServerSocket for each new connection. The
-     * ServerCommunicationLogic object is added to the clientConnection ArrayList.
-     * @param port The desired port to set up the ServerSocket to.
+     * Creates new DataStore with the history limits chosen in the config, the metrics and sets the compression
+     * threshold.
+     * Connections are not accepted until start is called.
+     * @param config The settings to start the server with.
      */
-    public ChatServer(int port){
+    public ChatServer(ServerConfig config){
+
+        this.config = config;
+        dataStore = new DataStore(config.getHistoryMessages(), config.getHistoryBytes(),
+                config.getHistoryAgeMillis());
+        metrics = new ServerMetrics(dataStore, clientCommunication);
+        if (config.getCompressThreshold() > 0) {
+            EncodedMessage.setCompressionThreshold(config.getCompressThreshold());
+        }
+    }
 
-        dataStore = new DataStore();
+    /**
+     * Opens the journal if one is configured, joins the cluster if this server is one of its nodes, and then accepts
+     * connections in the mode chosen in the config. Each new connection is added to the clientCommunication set. Does
+     * not return while the server is running.
+     */
+    public void start(){
+        timers = new TimerWheel(TIMER_TICK_MILLIS, TIMER_WHEEL_SIZE, "idle-timers");
+        metrics.start(this, timers, config.getMetricsMillis(), config.isPrintMetrics());
+        //Ctrl+C and kill also send the queued messages and close the journals before the process ends
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> shutdown("The server is shutting down."),
+                "shutdown-hook"));
         try {
-            serverSocket = new ServerSocket(port);
-            while (true) {
-                Socket socket = serverSocket.accept();
-                serverCommunicationLogic = new ServerCommunicationLogic(socket, this, dataStore);
-                clientCommunication.add(serverCommunicationLogic);
-                }
+            if (config.getJournalDirectory() != null) {
+                openJournal();
+            }
+            if ((config.getClusterPort() > 0 || config.getLeaderHost() != null) && config.getClusterSecret() == null) {
+                System.out.println("A cluster needs a shared secret. Start every node with -clustersecret. This " +
+                        "server will run on its own.");
+            }
+            else if (config.getClusterPort() > 0) {
+                cluster = ClusterNode.lead(this, dataStore, config.getClusterPort(), config.getClusterSecret());
+            }
+            else if (config.getLeaderHost() != null) {
+                cluster = ClusterNode.follow(this, dataStore, config.getLeaderHost(), config.getLeaderPort(),
+                        config.getClusterSecret());
+            }
+            if (config.getMode() == ServerConfig.Mode.NIO) {
+                acceptNonBlocking(config.getPort(), config.getEventLoops());
+            }
+            else if (config.getMode() == ServerConfig.Mode.VIRTUAL) {
+                acceptBlocking(config.getPort(), Thread.ofVirtual().name("client-", 0).factory());
+            }
+            else {
+                acceptBlocking(config.getPort(), Thread.ofPlatform().name("client-", 0).factory());
+            }
         }
         catch(BindException e){
             System.out.println("Connection failed. Please try another or try again later.");
@@ -41,73 +124,716 @@ public class ChatServer {
     }
 
     /**
-     * Handles "EXIT" command and then calls the clientCommunication objects to send a message to each client
+     * Replays the messages saved by previous runs into the dataStore, then saves every new message to the journal
+     * @throws IOException if the journal cannot be read or created
      */
-    public synchronized void messageToAll() {
-        if(dataStore.getLastMessage().split(": ")[1].equals("EXIT")){
-            System.out.println("Server closing by command of user.");
-            serverCommunicationLogic.stringToClient(dataStore.getLastMessage().split(": ")[0] + " has chosen" +
-                    " to close the server");
-            if(!serverSocket.isClosed()){
-                try {
-                    serverSocket.close();
+    private void openJournal() throws IOException {
+        dataStore.openJournal(Paths.get(config.getJournalDirectory()), config.getSegmentBytes());
+    }
+
+    /**
+     * Creates a ServerCommunicationLogic object, with its own reader and writer threads, for each new connection. The
+     * connection adds itself to the server once it knows which protocol the client speaks.
+     * @param port The desired port to set up the ServerSocket to.
+     * @param threadFactory Creates the reader threads, either platform or virtual threads.
+     * @throws IOException if the ServerSocket cannot be set up
+     */
+    private void acceptBlocking(int port, ThreadFactory threadFactory) throws IOException {
+        serverSocket = new ServerSocket(port);
+        while (true) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            }
+            catch (SocketException e) {
+                if (shuttingDown.get()) {
+                    return;
                 }
-                catch(SocketException e){
-                    System.out.println("Socket Closed");
+                throw e;
+            }
+            new ServerCommunicationLogic(socket, this, dataStore, threadFactory, newOutboundQueue(),
+                    config.getFlushMillis(), newRateLimiter(), newIdleMonitor());
+        }
+    }
+
+    /**
+     * Accepts connections on a selector and shares them between a fixed number of event loops in turn, so no
+     * threads are created per connection. As in acceptBlocking, the connection adds itself once its protocol is known.
+     * @param port The desired port to set up the ServerSocketChannel to.
+     * @param loops The number of event loop threads to serve the connections with.
+     * @throws IOException if the ServerSocketChannel cannot be set up
+     */
+    private void acceptNonBlocking(int port, int loops) throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverSocket = serverChannel.socket();
+
+        Selector acceptSelector = Selector.open();
+        serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+        this.acceptSelector = acceptSelector;
+
+        NioEventLoop[] eventLoops = new NioEventLoop[loops];
+        for (int i = 0; i < loops; i++) {
+            eventLoops[i] = new NioEventLoop("event-loop-" + i);
+        }
+        System.out.println("Non-blocking server started with " + loops + " event loop(s).");
+
+        int next = 0;
+        while (serverChannel.isOpen()) {
+            acceptSelector.select();
+            acceptSelector.selectedKeys().clear();
+            if (shuttingDown.get()) {
+                return;
+            }
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                NioEventLoop eventLoop = eventLoops[next];
+                next = (next + 1) % loops;
+                NioConnection connection = new NioConnection(channel, eventLoop, this, dataStore,
+                        newOutboundQueue(), config.getFlushMillis(), newRateLimiter(), newIdleMonitor());
+                eventLoop.register(connection);
+            }
+        }
+    }
+
+    /**
+     * Adds a new connection to those that messages are sent to, puts it in the default room and sends it the room's
+     * recent history
+     * @param connection the new connection
+     */
+    public void addConnection(ClientConnection connection) {
+        addConnection(connection, false);
+    }
+
+    /**
+     * Adds a new connection to those that messages are sent to. A client that is resuming is put back in its rooms
+     * when its SYNC frame arrives, otherwise it is put in the default room and sent the room's recent history.
+     * @param connection the new connection
+     * @param resuming true if FLAG_RESUME was agreed in the connection's WELCOME frame
+     */
+    public void addConnection(ClientConnection connection, boolean resuming) {
+        if (shuttingDown.get()) {
+            connection.close();
+            return;
+        }
+        clientCommunication.add(connection);
+        if (!resuming) {
+            rooms.join(connection, RoomRegistry.DEFAULT_ROOM);
+            sendJoinHistory(connection, RoomRegistry.DEFAULT_ROOM);
+        }
+    }
+
+    /**
+     * Called by a connection for every line it receives from a client using the line protocol. The line is split
+     * into the user name and the text once here, without a regular expression.
+     * @param from the connection the line was received on
+     * @param line the line received, in the form "name: text"
+     */
+    public void messageReceived(ClientConnection from, String line) {
+        int separator = line.indexOf(": ");
+        if (separator < 0) {
+            messageReceived(from, null, line);
+        }
+        else {
+            messageReceived(from, line.substring(0, separator), line.substring(separator + 2));
+        }
+    }
+
+    /**
+     * Called by a connection for every frame it receives from a client using the frame protocol. The user name was
+     * sent once in the HELLO frame, so message frames carry only the text.
+     * @param from the connection the frame was received on
+     * @param sender the name the client gave in its HELLO frame
+     * @param frame the frame received
+     */
+    public void frameReceived(ClientConnection from, String sender, ChatProtocol.Frame frame) {
+        if (frame.getType() == ChatProtocol.MESSAGE) {
+            messageReceived(from, sender, frame.text(0));
+        }
+        else if (frame.getType() == ChatProtocol.EXIT) {
+            exitRequested(from, sender);
+        }
+        else if (frame.getType() == ChatProtocol.SYNC) {
+            try {
+                resume(from, ChatProtocol.readSync(frame));
+            }
+            catch (IOException e) {
+                System.out.println("Closing a client that sent an invalid SYNC frame.");
+                from.close();
+            }
+        }
+    }
+
+    /**
+     * Puts a reconnected client back in the rooms it was in and sends it the messages it missed while it was away.
+     * Rooms are joined in the order sent, so the last becomes the room its messages go to, as it was before. A room
+     * the client saw no messages in is treated as newly joined, and so is one whose newest message here is older
+     * than the one the client saw, which happens when the server has restarted without a journal. If any of the
+     * rooms' journals is still being replayed, the rooms are joined once it has finished.
+     * @param connection the connection that sent the SYNC frame
+     * @param seen the newest sequence number the client saw in each room, or -1
+     */
+    private void resume(ClientConnection connection, Map<String, Long> seen) {
+        if (shuttingDown.get()) {
+            return;
+        }
+        LinkedHashMap<String, Long> available = new LinkedHashMap<>();
+        CompletableFuture<Void> ready = CompletableFuture.completedFuture(null);
+        for (Map.Entry<String, Long> entry : seen.entrySet()) {
+            String room = RoomRegistry.normalise(entry.getKey());
+            if (room != null && roomAvailable(room)) {
+                available.put(room, entry.getValue());
+                ready = CompletableFuture.allOf(ready, dataStore.prepareRoom(room));
+            }
+        }
+        whenJoinable(connection, ready, () -> rejoin(connection, available));
+    }
+
+    /**
+     * The rest of resume, once the rooms' histories are ready
+     * @param connection the connection that sent the SYNC frame
+     * @param seen the newest sequence number the client saw in each room it can rejoin, or -1
+     */
+    private void rejoin(ClientConnection connection, Map<String, Long> seen) {
+        String current = null;
+        for (Map.Entry<String, Long> entry : seen.entrySet()) {
+            String room = entry.getKey();
+            if (rooms.join(connection, room)) {
+                long last = dataStore.lastSequence(room);
+                long newest = entry.getValue();
+                if (newest < 0 || newest > last) {
+                    sendJoinHistory(connection, room);
                 }
-                catch(IOException e){
-                    System.out.println("Socket Closed");
+                else if (newest < last) {
+                    connection.stream(dataStore.history(room, newest + 1, last, HISTORY_BATCH, null));
                 }
             }
-            System.exit(0);
+            current = room;
+        }
+        leaveIfRemoved(connection);
+        if (current != null) {
+            connection.stringToClient("You are now sending messages to #" + current + ".");
+        }
+    }
+
+    /**
+     * Room, history and admin commands are answered for the sending client only, "EXIT" from an admin closes the
+     * server, and everything else is stored in the sender's current room and sent to that room's members.
+     * @param from the connection the message was received on
+     * @param sender the user name, or null if the line did not have one
+     * @param text the text typed by the user
+     */
+    private void messageReceived(ClientConnection from, String sender, String text) {
+        long receivedAt = System.nanoTime();
+        if (shuttingDown.get()) {
+            //Every client has already been told the server is closing and sent its last messages
+            return;
+        }
+        if (text.length() + (sender == null ? 0 : sender.length() + 2) > ChatProtocol.MAX_MESSAGE_LENGTH) {
+            //Sent on with its number and room it would no longer fit in a frame, and every framed client would be
+            //dropped trying to read it
+            from.stringToClient("Your message was not sent. Messages can be up to " +
+                    ChatProtocol.MAX_MESSAGE_LENGTH + " characters long, including your name.");
+            return;
+        }
+        if (text.startsWith("/join ")) {
+            joinRoom(from, text.substring(6));
+            return;
+        }
+        else if (text.startsWith("/leave ")) {
+            leaveRoom(from, text.substring(7));
+            return;
+        }
+        else if (text.equals("/rooms")) {
+            listRooms(from);
+            return;
+        }
+        else if (text.startsWith("/admin ")) {
+            authenticate(from, sender, text.substring(7));
+            return;
+        }
+        else if (sender != null && text.equals("EXIT")) {
+            exitRequested(from, sender);
+            return;
+        }
+
+        String room = rooms.currentRoom(from);
+        if (room == null) {
+            from.stringToClient("You are not in any room. Type /join followed by a room name.");
+        }
+        else if (text.equals("/history") || text.startsWith("/history ")) {
+            sendHistory(from, room, text);
         }
         else {
-            if(!dataStore.getLastMessage().equals(null)) {
-                for (int i = 0; i < clientCommunication.size(); i++) {
-                    (clientCommunication.get(i)).stringToClient(dataStore.getLastMessage());
+            String line = sender == null ? text : sender + ": " + text;
+            if (cluster != null && !cluster.isLeader()) {
+                //Stored and broadcast once the leader has numbered it and sent it back
+                if (!cluster.forward(room, line)) {
+                    from.stringToClient("This server has lost its link to the rest of the chat. Your message was " +
+                            "not sent.");
                 }
+                return;
             }
+            publish(room, line, receivedAt);
+        }
+    }
+
+    /**
+     * Stores a message in a room, which gives it its sequence number, and queues it for the room's members under the
+     * room's lock, so two messages typed at once are never delivered in the opposite order to their numbers. On a
+     * cluster leader the message is also queued for every other node under the same lock, so that the nodes receive
+     * each room's messages in the order they were numbered. Only numbering and queueing are done under the lock, and
+     * messages in other rooms are published at the same time.
+     * @param room the room the message was sent to
+     * @param line the message, in the form "name: text"
+     * @param receivedAt the System.nanoTime at which the message was read
+     */
+    private void publish(String room, String line, long receivedAt) {
+        String labelled = RoomRegistry.label(room, line);
+        System.out.println(labelled);
+        ReentrantLock publishLock = publishLocks.computeIfAbsent(room, name -> new ReentrantLock());
+        publishLock.lock();
+        try {
+            long sequence = dataStore.addMessage(room, line);
+            if (cluster != null) {
+                cluster.replicate(room, sequence, line);
+            }
+            messageToRoom(room, sequence, labelled);
+        }
+        finally {
+            publishLock.unlock();
+        }
+        metrics.broadcast(receivedAt);
+    }
+
+    /**
+     * Called on the cluster leader for each message typed by a user on another node
+     * @param room the room the message was sent to
+     * @param line the message, in the form "name: text"
+     */
+    public void relayed(String room, String line) {
+        String name = RoomRegistry.normalise(room);
+        if (name == null || !roomAvailable(name)) {
+            System.out.println("Ignoring a message relayed to an invalid or extra room: " + room);
+            return;
+        }
+        if (line.length() > ChatProtocol.MAX_MESSAGE_LENGTH) {
+            System.out.println("Ignoring a message relayed to #" + name + " that is too long.");
+            return;
+        }
+        publish(name, line, System.nanoTime());
+    }
+
+    /**
+     * Called on a cluster follower for each message the leader has numbered, in sequence order for each room. The
+     * message is stored with the leader's sequence number, so every node's history is the same.
+     * @param room the room the message was sent to
+     * @param sequence the sequence number the leader gave the message
+     * @param line the message, in the form "name: text"
+     */
+    public void replicated(String room, long sequence, String line) {
+        long receivedAt = System.nanoTime();
+        //The leader only numbers messages for valid rooms, so anything else did not come from it
+        if (!room.equals(RoomRegistry.normalise(room))) {
+            System.out.println("Ignoring a message from the leader for an invalid room: " + room);
+            return;
+        }
+        if (dataStore.putMessage(room, sequence, line)) {
+            String labelled = RoomRegistry.label(room, line);
+            System.out.println(labelled);
+            messageToRoom(room, sequence, labelled);
+            metrics.broadcast(receivedAt);
+        }
+    }
+
+    /**
+     * Answers "/join [room]" by adding the connection to the room, which becomes the room its messages are sent to,
+     * and sending it the room's recent history. A room used for the first time is joined once its journal has been
+     * replayed, so the connection's thread is not held up meanwhile. Until the answer arrives the user's messages
+     * still go to the room they were sending to.
+     * @param connection the connection that asked to join
+     * @param name the room name typed by the user
+     */
+    private void joinRoom(ClientConnection connection, String name) {
+        String room = RoomRegistry.normalise(name);
+        if (room == null) {
+            connection.stringToClient("Room names can use up to 32 letters, numbers, '-' and '_'.");
+            return;
+        }
+        if (!roomAvailable(room)) {
+            connection.stringToClient("No more rooms can be made on this server. Type /rooms to see the rooms in use.");
+            return;
+        }
+        whenJoinable(connection, dataStore.prepareRoom(room), () -> {
+            if (rooms.join(connection, room)) {
+                sendJoinHistory(connection, room);
+            }
+            leaveIfRemoved(connection);
+            connection.stringToClient("You are now sending messages to #" + room + ".");
+        });
+    }
+
+    /**
+     * Runs a join once the rooms' histories are ready and the connection's earlier joins have run, straight away if
+     * they already have
+     * @param connection the connection joining
+     * @param ready completes once the rooms' histories are ready
+     * @param join joins the rooms and answers the client
+     */
+    private void whenJoinable(ClientConnection connection, CompletableFuture<Void> ready, Runnable join) {
+        CompletableFuture<Void> joined = pendingJoins.compute(connection, (c, earlier) ->
+                (earlier == null ? ready : CompletableFuture.allOf(earlier.exceptionally(e -> null), ready))
+                        .thenRun(join));
+        joined.whenComplete((result, e) -> pendingJoins.remove(connection, joined));
+    }
+
+    /**
+     * Takes a connection back out of its rooms if it was removed while waiting to join them, as removeConnection
+     * only leaves the rooms it was in at the time
+     * @param connection a connection that has just joined a room
+     */
+    private void leaveIfRemoved(ClientConnection connection) {
+        if (!clientCommunication.contains(connection)) {
+            rooms.leaveAll(connection);
         }
     }
 
+    /**
+     * @param room a room name returned by RoomRegistry.normalise
+     * @return true if the room exists or another room can be made without going over -maxrooms
+     */
+    private boolean roomAvailable(String room) {
+        return dataStore.hasRoom(room) || dataStore.roomCount() < config.getMaxRooms();
+    }
+
+    /**
+     * Answers "/leave [room]"
+     * @param connection the connection that asked to leave
+     * @param name the room name typed by the user
+     */
+    private void leaveRoom(ClientConnection connection, String name) {
+        String room = RoomRegistry.normalise(name);
+        if (room == null || !rooms.leave(connection, room)) {
+            connection.stringToClient("You are not in #" + name.trim() + ".");
+            return;
+        }
+        String current = rooms.currentRoom(connection);
+        connection.stringToClient("You have left #" + room + "." + (current == null
+                ? " Type /join followed by a room name to carry on chatting."
+                : " You are now sending messages to #" + current + "."));
+    }
+
+    /**
+     * Answers "/rooms" with the rooms that have members and the room the user is sending messages to
+     * @param connection the connection that asked
+     */
+    private void listRooms(ClientConnection connection) {
+        StringBuilder list = new StringBuilder("Rooms:");
+        rooms.memberCounts().forEach((room, members) -> list.append(" #").append(room).append(" (")
+                .append(members).append(")"));
+        String current = rooms.currentRoom(connection);
+        if (current != null) {
+            list.append(". You are sending messages to #").append(current).append(".");
+        }
+        connection.stringToClient(list.toString());
+    }
+
+    /**
+     * Sends the most recent messages of a room to a user who has just joined it
+     * @param connection the new connection
+     * @param room the room joined
+     */
+    private void sendJoinHistory(ClientConnection connection, String room) {
+        long last = dataStore.lastSequence(room);
+        if (config.getJoinHistory() > 0 && last >= 0) {
+            connection.stream(dataStore.history(room, last - config.getJoinHistory() + 1, last, HISTORY_BATCH,
+                    null));
+        }
+    }
+
+    /**
+     * Answers "/history [from] [to]" with the messages in that range, or "/history [count]" with the most recent
+     * messages. The messages are read and sent in batches by the connection's writer, so a long history does not
+     * hold up the broadcast.
+     * @param connection the connection that asked for the history
+     * @param room the room the user is sending messages to, whose history is sent
+     * @param command the command typed by the user
+     */
+    private void sendHistory(ClientConnection connection, String room, String command) {
+        String[] arguments = command.trim().split("\\s+");
+        long first = dataStore.firstSequence(room);
+        long last = dataStore.lastSequence(room);
+        long from;
+        long to;
+        try {
+            if (arguments.length > 2) {
+                from = Long.parseLong(arguments[1]);
+                to = Long.parseLong(arguments[2]);
+            }
+            else {
+                long count = arguments.length > 1 ? Long.parseLong(arguments[1]) : HISTORY_BATCH;
+                to = last;
+                from = last - count + 1;
+            }
+        }
+        catch (NumberFormatException e) {
+            connection.stringToClient("Usage: /history [from] [to] or /history [count]");
+            return;
+        }
+        from = Math.max(from, first);
+        to = Math.min(Math.min(to, last), from + MAX_HISTORY_PAGE - 1);
+        if (from > to) {
+            connection.stringToClient("No messages in that range (history holds " + first + " to " + last + ").");
+            return;
+        }
+        connection.stream(dataStore.history(room, from, to, HISTORY_BATCH, "Messages " + from + " to " + to +
+                " of #" + room + " (history holds " + first + " to " + last + "):"));
+    }
+
+    /**
+     * Answers "/admin [token]" by letting the connection close the server if the token matches the one the server was
+     * started with. The token is compared in constant time, so its characters cannot be guessed one by one from how
+     * long the answer takes.
+     * @param connection the connection that sent the command
+     * @param sender the user name, or null if the line did not have one
+     * @param token the token typed by the user
+     */
+    private void authenticate(ClientConnection connection, String sender, String token) {
+        String adminToken = config.getAdminToken();
+        if (adminToken != null && MessageDigest.isEqual(adminToken.getBytes(StandardCharsets.UTF_8),
+                token.trim().getBytes(StandardCharsets.UTF_8))) {
+            admins.add(connection);
+            System.out.println(sender + " is now an admin.");
+            connection.stringToClient("You are now an admin. Type EXIT to close the server.");
+        }
+        else {
+            System.out.println("A wrong admin token was given by " + sender + ".");
+            connection.stringToClient("That is not the admin token.");
+        }
+    }
+
+    /**
+     * Closes the server on an admin's "EXIT" command. The shutdown runs on its own thread, so the connection that
+     * asked can still be sent what is queued for it.
+     * @param connection the connection the command was received on
+     * @param sender the name of the user who sent the command
+     */
+    private void exitRequested(ClientConnection connection, String sender) {
+        if (!admins.contains(connection)) {
+            connection.stringToClient(config.getAdminToken() == null ? "This server cannot be closed by its users."
+                    : "Only an admin can close the server. Type /admin followed by the admin token first.");
+            return;
+        }
+        System.out.println("Server closing by command of " + sender + ".");
+        new Thread(() -> {
+            if (shutdown(sender + " has chosen to close the server.")) {
+                System.exit(0);
+            }
+        }, "shutdown").start();
+    }
+
+    /**
+     * Shuts the server down without losing what has already been sent. New connections are no longer accepted, every
+     * client is told why the server is closing, and each connection then writes everything still queued for it and
+     * closes. Connections that have not finished by the drain deadline are closed anyway. Last of all the journals
+     * write out the messages they hold and are closed. Only the first call does anything.
+     * @param reason the notice sent to every client
+     * @return false if the server was already shutting down
+     */
+    public boolean shutdown(String reason) {
+        if (!shuttingDown.compareAndSet(false, true)) {
+            return false;
+        }
+        System.out.println(reason);
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            }
+            catch (IOException e) {
+            }
+        }
+        Selector selector = acceptSelector;
+        if (selector != null) {
+            selector.wakeup();
+        }
+
+        broadcastLock.writeLock().lock();
+        try {
+            EncodedMessage goodbye = EncodedMessage.shutdown(reason);
+            clientCommunication.forEach(connection -> {
+                connection.send(goodbye);
+                connection.finish();
+            });
+        }
+        finally {
+            broadcastLock.writeLock().unlock();
+        }
+
+        long deadline = System.nanoTime() + config.getDrainMillis() * 1000000;
+        while (connectionCount() > 0 && System.nanoTime() - deadline < 0) {
+            try {
+                Thread.sleep(10);
+            }
+            catch (InterruptedException e) {
+                break;
+            }
+        }
+        if (connectionCount() > 0) {
+            System.out.println(connectionCount() + " client(s) had not been sent everything by the deadline and " +
+                    "were disconnected.");
+            clientCommunication.forEach(ClientConnection::close);
+        }
+
+        dataStore.closeJournals();
+        if (timers != null) {
+            timers.stop();
+        }
+        System.out.println("Server closed.");
+        return true;
+    }
+
+    /**
+     * Queues a message for each member of the room it was sent to. Connections in other rooms are not visited at all,
+     * and broadcasts to other rooms are not waited for. The caller keeps each room's messages in order.
+     * @param room the room the message was sent to
+     * @param sequence the sequence number the message was given, which is sent with it rather than the room's last
+     *                 number, as that may already belong to another client's message
+     * @param message the message as shown to users, marked with its room outside the default room
+     */
+    private void messageToRoom(String room, long sequence, String message) {
+        //Encoded once here and shared by every member rather than once per member. Each member's writer picks the
+        //line or frame encoding, and each encoding is also only built once, by the writers outside any lock.
+        EncodedMessage encoded = EncodedMessage.chat(room, sequence, message);
+        broadcastLock.readLock().lock();
+        try {
+            rooms.forEachMember(room, connection -> connection.send(encoded));
+        }
+        finally {
+            broadcastLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Decides which of the options a framed client asked for in its HELLO frame are used
+     * @param requested the flags sent in HELLO
+     * @return the flags to send back in WELCOME, which the connection then uses
+     */
+    public byte negotiateFlags(byte requested) {
+        byte accepted = 0;
+        if (config.getCompressThreshold() > 0) {
+            accepted = (byte) (accepted | (requested & ChatProtocol.FLAG_COMPRESS));
+        }
+        accepted = (byte) (accepted | (requested & (ChatProtocol.FLAG_RESUME | ChatProtocol.FLAG_ROOMS)));
+        return accepted;
+    }
+
+    /**
+     * @return a new number to identify a client by in its WELCOME frame
+     */
+    public int nextClientId() {
+        return clientIds.incrementAndGet();
+    }
+
     /**
      * Removes objects corresponding to disconnected users and therefore shuts down their threads. Re-adjusts
      * dataStore lists to mirror dis-connection.
      * @param toBeRemoved the object that has been disconnected
      */
-    public void removeConnection(ServerCommunicationLogic toBeRemoved){
-        clientCommunication.remove(toBeRemoved);
+    public void removeConnection(ClientConnection toBeRemoved){
+        if (clientCommunication.remove(toBeRemoved)) {
+            metrics.connectionRemoved(toBeRemoved);
+        }
+        admins.remove(toBeRemoved);
+        pendingJoins.remove(toBeRemoved);
+        rooms.leaveAll(toBeRemoved);
         dataStore.userNotActive(toBeRemoved);
+        if (toBeRemoved.getDroppedMessages() > 0) {
+            System.out.println(toBeRemoved.getDroppedMessages() + " messages were dropped for the removed user.");
+        }
+        String compression = EncodedMessage.compressionSummary();
+        if (compression != null) {
+            System.out.println(compression);
+        }
     }
 
-    public static void main(String[] args) {
+    /**
+     * Called by a connection when it stops reading from a client that is sending faster than its rate limits allow
+     * @param connection the connection
+     */
+    public void throttleStarted(ClientConnection connection) {
+        int throttled = throttledConnections.incrementAndGet();
+        long count = throttleCount.incrementAndGet();
+        //Reported at most every few seconds, as a flooding client is throttled many times a second
+        long now = System.currentTimeMillis();
+        long last = lastThrottleReport.get();
+        if (now - last >= THROTTLE_REPORT_MILLIS && lastThrottleReport.compareAndSet(last, now)) {
+            System.out.println("Slowing down clients that are sending too fast. Throttled connections: " + throttled +
+                    ", throttled " + count + " times since the server started.");
+        }
+    }
 
-        int port = 14001;
-        boolean portRead;
-
-        //Handles command line flag for port
-        if (args.length > 0) {
-            if(args[0].equals("-csp")) {
-                    portRead = true;
-                    try {
-                        port = Integer.parseInt(args[1]);
-                    } catch (NumberFormatException e) {
-                        System.out.println("The port entered is invalid. Using 14001 as default.");
-                    } catch (ArrayIndexOutOfBoundsException e){
-                        System.out.println("No port found after flag. Default port 14001 is being used.");
-                    }
-                    if(port < 0 || port > 65535){
-                        port = 14001;
-                        System.out.println("The port entered is invalid. Using 14001 as default.");
-                    }
-                if(!portRead) {
-                    System.out.println("Invalid command line flag.");
-                }
+    /**
+     * Called by a connection when it starts reading from a throttled client again
+     * @param connection the connection
+     */
+    public void throttleEnded(ClientConnection connection) {
+        throttledConnections.decrementAndGet();
+    }
 
-            }
-        }
+    /**
+     * @return the number of connections that are currently not being read from because they are over their limits
+     */
+    public int throttledConnections() {
+        return throttledConnections.get();
+    }
+
+    /**
+     * @return the number of times a connection has been throttled since the server started
+     */
+    public long throttleCount() {
+        return throttleCount.get();
+    }
+
+    /**
+     * @return the number of clients messages are currently sent to
+     */
+    public int connectionCount() {
+        return clientCommunication.size();
+    }
+
+    /**
+     * @return the metrics the connections add to
+     */
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return an empty outbound queue with the capacity and slow client policy chosen in the config
+     */
+    private OutboundQueue newOutboundQueue() {
+        return new OutboundQueue(config.getQueueCapacity(), config.getSlowConsumerPolicy());
+    }
+
+    /**
+     * @return a rate limiter for a new connection with the limits chosen in the config
+     */
+    private RateLimiter newRateLimiter() {
+        return new RateLimiter(config.getRateMessages(), config.getRateBytes());
+    }
+
+    /**
+     * @return an idle monitor for a new connection with the heartbeat and idle timeout chosen in the config
+     */
+    private IdleMonitor newIdleMonitor() {
+        return new IdleMonitor(timers, config.getHeartbeatMillis(), config.getIdleMillis());
+    }
+
+    public static void main(String[] args) {
 
-        new ChatServer(port);
+        //Handles command line flags for the port and server mode
+        new ChatServer(ServerConfig.fromArgs(args)).start();
     }
 
 }
@@ -1,18 +1,67 @@
 /**
- * Contains the main thread logic for communication with the server
+ * Contains the main thread logic for communication with the server.
+ * A client using frames reconnects by itself when its connection is lost, waiting longer after each failed attempt.
+ * It tells the server the newest message it saw in each of its rooms, so only the messages it missed are sent again,
+ * and messages typed while it was offline are sent once it is back.
  */
 
 import javafx.application.Platform;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class ClientCommunicationLogic {
 
-    private PrintWriter toServer;
+    //How long to wait for the server to answer HELLO before falling back to the line protocol
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 2000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+    //The delay before the first attempt to reconnect, doubled after each failed attempt up to the most
+    private static final long FIRST_RETRY_MILLIS = 500;
+    private static final long MAX_RETRY_MILLIS = 30000;
+    //The most messages kept while the connection is down
+    private static final int MAX_OFFLINE_MESSAGES = 1000;
+    //The room the server puts every new client in
+    private static final String DEFAULT_ROOM = "general";
+    //The server's notices when a user joins or leaves a room, followed by the room name and "."
+    private static final String JOINED_NOTICE = "You are now sending messages to #";
+    private static final String LEFT_NOTICE = "You have left #";
+
     private Socket socket;
+    private SocketAddress address;
     private GUIController guiController;
     private boolean usingGUI;
     private ChatClient chatClient;
+    private String userName;
+    //Set once the server has answered the HELLO frame, otherwise the line protocol is used
+    private boolean framed;
+    //Set if the server agreed FLAG_ROOMS, so MESSAGE and HISTORY frames say which room they belong to. Only an older
+    //server leaves the room to be read from the text, where a user named "#something" could be mistaken for a room.
+    private boolean roomFrames;
+    //Null if no connection to the server could be made, and replaced by the reader thread when it reconnects
+    private volatile ClientTransport transport;
+    private CountDownLatch connected = new CountDownLatch(1);
+    //Set when the server says it is shutting down, so the connection closing afterwards is expected
+    private volatile boolean serverShutDown;
+    //The rooms the user is in, ending with the room their messages go to, with the newest sequence number seen in
+    //each, or -1. Only used by the reader thread.
+    private LinkedHashMap<String, Long> rooms = new LinkedHashMap<>();
+    //The newest sequence number seen in rooms whose join notice has not arrived yet, as a room's recent history is
+    //sent before the notice
+    private HashMap<String, Long> joining = new HashMap<>();
+    //The last of rooms, for the GUI
+    private volatile String currentRoom;
+    //Messages typed while the connection is down, oldest first
+    private ArrayDeque<byte[]> offline = new ArrayDeque<>();
+    private boolean reconnecting;
+    //Guards transport being replaced, reconnecting and offline
+    private ReentrantLock sendLock = new ReentrantLock();
 
     /**
      * Initialises objects
@@ -26,40 +75,211 @@ public class ClientCommunicationLogic {
 
     }
 
+    /**
+     * Offers the frame protocol to the server by sending a HELLO frame. A server that does not answer with a WELCOME
+     * frame in time only speaks the line protocol, so the socket is replaced by a new connection that uses lines.
+     * @param userName the name shown with this user's messages
+     * @return the socket now in use, which may be a different one to that given to the constructor
+     */
+    public Socket handshake(String userName) {
+
+        this.userName = userName;
+        try {
+            if (socket.isConnected()) {
+                address = socket.getRemoteSocketAddress();
+                transport = open(socket);
+                byte agreed = hello(socket, transport, (byte) (ChatProtocol.FLAG_COMPRESS | ChatProtocol.FLAG_ROOMS));
+                roomFrames = (agreed & ChatProtocol.FLAG_ROOMS) != 0;
+                framed = true;
+                rooms.put(DEFAULT_ROOM, -1L);
+                currentRoom = DEFAULT_ROOM;
+            }
+        }
+        catch (IOException e) {
+            //Anything other than a WELCOME frame means an older server, which has taken HELLO as part of a line
+            try {
+                SocketAddress address = socket.getRemoteSocketAddress();
+                //Resetting the connection rather than closing it stops the server reading HELLO as a last line
+                socket.setSoLinger(true, 0);
+                if (transport != null) {
+                    transport.close();
+                }
+                socket.close();
+                transport = null;
+                socket = new Socket();
+                socket.connect(address, 1000);
+                transport = open(socket);
+            }
+            catch (IOException | IllegalArgumentException reconnectFailed) {
+                out("There is a problem connecting to the server. Please try again");
+            }
+        }
+        finally {
+            connected.countDown();
+        }
+        return socket;
+    }
+
+    /**
+     * @param socket a connected socket
+     * @return a transport for the socket, which closes it if a write fails so that the reader finds out
+     * @throws IOException if the socket's streams cannot be opened
+     */
+    private ClientTransport open(Socket socket) throws IOException {
+        return new ClientTransport(socket, () -> writeFailed(socket));
+    }
+
+    /**
+     * Sends MAGIC and a HELLO frame and waits for the server's WELCOME frame
+     * @param socket the transport's socket
+     * @param transport a new transport
+     * @param flags options to ask the server for
+     * @return the options the server agreed to
+     * @throws IOException if the server does not answer with a WELCOME frame in time
+     */
+    private byte hello(Socket socket, ClientTransport transport, byte flags) throws IOException {
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+        transport.send(ChatProtocol.hello(userName, flags));
+        ChatProtocol.Frame welcome = transport.readFrame();
+        ChatProtocol.checkWelcome(welcome);
+        socket.setSoTimeout(0);
+        return welcome.getByte(1);
+    }
+
     /**
      * Locic for client-server communication
-     * @param userInput The message to be sent
+     * @param userInput The text typed by the user, without the user name
      */
     public void runOut(String userInput) {
 
+        if (userInput == null) {
+            return;
+        }
         try {
-            toServer = new PrintWriter(socket.getOutputStream(), true);
+            connected.await();
         }
-        catch(SocketException e){
+        catch (InterruptedException e) {
             return;
         }
-        catch (IOException e) {
-            e.printStackTrace();
+        if (transport == null) {
+            out("There is a problem connecting to the server. Please try again");
+            return;
+        }
+        if (userName.length() + 2 + userInput.length() > ChatProtocol.MAX_MESSAGE_LENGTH) {
+            out("This message is too long to send. Messages can be up to " + ChatProtocol.MAX_MESSAGE_LENGTH +
+                    " characters long, including your name.");
+            return;
+        }
+        if (framed) {
+            sendFrame(userInput);
+            return;
         }
 
+        String line = userName + ": " + userInput;
         //If the text after the username is "EXIT"
-        if (userInput.split(": ")[1].equals("EXIT")) {
+        if (userInput.equals("EXIT")) {
             if (usingGUI) {
                 Platform.runLater(() -> {
                     if (guiController.exit("Are you sure?", "Are you sure you want to close the server? " +
                             "This will remove all users from the chat.")) {
                         //This allows the server to deal with the EXIT command to follow the rest of the program
-                        toServer.println(userInput);
+                        send(line);
 
                     }
                 });
             }
             else{
-                toServer.println(userInput);
+                send(line);
             }
         }
         else {
-            toServer.println(userInput);
+            send(line);
+        }
+    }
+
+    /**
+     * Sends the text as a MESSAGE frame, or an EXIT frame once the user has confirmed it
+     * @param userInput The text typed by the user
+     */
+    private void sendFrame(String userInput) {
+        if (userInput.equals("EXIT")) {
+            if (usingGUI) {
+                Platform.runLater(() -> {
+                    if (guiController.exit("Are you sure?", "Are you sure you want to close the server? " +
+                            "This will remove all users from the chat.")) {
+                        sendMessage(ChatProtocol.frame(ChatProtocol.EXIT, new byte[0], null));
+                    }
+                });
+            }
+            else {
+                sendMessage(ChatProtocol.frame(ChatProtocol.EXIT, new byte[0], null));
+            }
+        }
+        else {
+            sendMessage(ChatProtocol.frame(ChatProtocol.MESSAGE, new byte[0], userInput));
+        }
+    }
+
+    /**
+     * Queues a frame typed by the user, or keeps it to be sent after reconnecting if the connection is down
+     * @param frame a whole frame, including its length
+     */
+    private void sendMessage(byte[] frame) {
+        int waiting;
+        sendLock.lock();
+        try {
+            if (!reconnecting && transport.send(frame)) {
+                return;
+            }
+            waiting = offline.size();
+            if (waiting < MAX_OFFLINE_MESSAGES) {
+                offline.addLast(frame);
+            }
+        }
+        finally {
+            sendLock.unlock();
+        }
+        if (waiting == 0) {
+            out("You are offline. Your messages will be sent when the connection is back.");
+        }
+        else if (waiting >= MAX_OFFLINE_MESSAGES) {
+            out("Too many messages are waiting for the connection to come back. This message was not sent.");
+        }
+    }
+
+    /**
+     * Queues a frame for the transport's writer, so the caller never waits on the network. A frame that cannot be
+     * sent is dropped, as the reader is about to reconnect.
+     * @param frame a whole frame, including its length
+     */
+    private void writeFrame(byte[] frame) {
+        transport.send(frame);
+    }
+
+    /**
+     * Queues a line for a server that speaks the line protocol
+     * @param line the line, including the user name
+     */
+    private void send(String line) {
+        if (!transport.sendLine(line)) {
+            out("The server is disconnected. Messages sent now will not be received by other users.");
+        }
+    }
+
+    /**
+     * Called on a transport's writer thread when a message cannot be written to the server. With frames the socket
+     * is closed, so the reader stops waiting on it and reconnects.
+     * @param failed the transport's socket
+     */
+    private void writeFailed(Socket failed) {
+        if (!framed) {
+            out("The server is disconnected. Messages sent now will not be received by other users.");
+            return;
+        }
+        try {
+            failed.close();
+        }
+        catch (IOException e) {
         }
     }
 
@@ -69,9 +289,23 @@ public class ClientCommunicationLogic {
     public void runIn() {
 
         try {
-            while (socket.getInputStream() != null && socket.isConnected()) {
-                BufferedReader serverIn = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                String serverRec = serverIn.readLine();
+            connected.await();
+        }
+        catch (InterruptedException e) {
+            return;
+        }
+        if (transport == null) {
+            out(" There is a problem connecting to the server. Please try again");
+            return;
+        }
+        if (framed) {
+            runInFramed();
+            return;
+        }
+        try {
+            while (socket.isConnected()) {
+                //The transport keeps one reader for the whole connection, so nothing read ahead is lost
+                String serverRec = transport.readLine();
                 if(serverRec == null){
                     out("The Server has stopped responding. Please restart and try again.");
                     cleanClose();
@@ -84,10 +318,240 @@ public class ClientCommunicationLogic {
         catch(IOException e){
             out("The server is disconnected. Messages sent now will not be received by other users.");
         }
-        catch (NullPointerException e) {
-            out(" There is a problem connecting to the server. Please try again");
+
+    }
+
+    /**
+     * Reads frames from the server, reconnecting whenever the connection is lost
+     */
+    private void runInFramed() {
+        while (true) {
+            try {
+                while (true) {
+                    ChatProtocol.Frame frame = transport.readFrame();
+                    if (frame.getType() == ChatProtocol.COMPRESSED) {
+                        //Only sent if the server agreed to compression, and may hold a whole batch of history
+                        ByteBuffer frames = ChatProtocol.decompress(frame);
+                        while (frames.hasRemaining()) {
+                            ChatProtocol.Frame inner = ChatProtocol.readFrame(frames);
+                            if (inner == null) {
+                                throw new IOException("Incomplete frame inside a compressed frame");
+                            }
+                            show(inner);
+                        }
+                    }
+                    else {
+                        show(frame);
+                    }
+                }
+            }
+            catch (IOException e) {
+                if (!reconnect()) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Connects to the server again, waiting twice as long after each failed attempt, with a random part so that
+     * clients which lost the same server do not all come back at once. Once connected, the server is sent the rooms
+     * the user was in and the newest message seen in each, so it only sends the messages that were missed, and then
+     * the messages that were waiting to be written or typed while offline are sent, oldest first.
+     * @return true once reconnected, false if the reader was interrupted
+     */
+    private boolean reconnect() {
+        sendLock.lock();
+        try {
+            reconnecting = true;
+            List<byte[]> unsent = transport.close();
+            for (int i = unsent.size() - 1; i >= 0; i--) {
+                offline.addFirst(unsent.get(i));
+            }
+        }
+        finally {
+            sendLock.unlock();
+        }
+        out(serverShutDown ? "Reconnecting when the server is back..." : "Lost the connection to the server. " +
+                "Reconnecting...");
+
+        long retryMillis = FIRST_RETRY_MILLIS;
+        while (true) {
+            try {
+                Thread.sleep(retryMillis / 2 + ThreadLocalRandom.current().nextLong(retryMillis / 2 + 1));
+            }
+            catch (InterruptedException e) {
+                return false;
+            }
+            retryMillis = Math.min(MAX_RETRY_MILLIS, retryMillis * 2);
+
+            Socket next = new Socket();
+            ClientTransport nextTransport;
+            try {
+                next.connect(address, CONNECT_TIMEOUT_MILLIS);
+                nextTransport = open(next);
+            }
+            catch (IOException e) {
+                closeQuietly(next);
+                continue;
+            }
+            try {
+                byte flags = ChatProtocol.FLAG_COMPRESS | ChatProtocol.FLAG_RESUME | ChatProtocol.FLAG_ROOMS;
+                byte agreed = hello(next, nextTransport, flags);
+                roomFrames = (agreed & ChatProtocol.FLAG_ROOMS) != 0;
+                if ((agreed & ChatProtocol.FLAG_RESUME) != 0) {
+                    nextTransport.send(ChatProtocol.sync(rooms));
+                }
+                else {
+                    //A server without resume puts the client in the default room and sends its recent history
+                    rooms.clear();
+                    rooms.put(DEFAULT_ROOM, -1L);
+                    currentRoom = DEFAULT_ROOM;
+                }
+                joining.clear();
+            }
+            catch (IOException e) {
+                nextTransport.close();
+                continue;
+            }
+
+            boolean sentOffline;
+            sendLock.lock();
+            try {
+                socket = next;
+                transport = nextTransport;
+                sentOffline = !offline.isEmpty();
+                while (!offline.isEmpty()) {
+                    transport.send(offline.pollFirst());
+                }
+                reconnecting = false;
+                serverShutDown = false;
+            }
+            finally {
+                sendLock.unlock();
+            }
+            out("Reconnected to the server." + (sentOffline ? " Messages typed while offline have been sent." : ""));
+            return true;
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        }
+        catch (IOException e) {
+        }
+    }
+
+    /**
+     * @param text a message from a server that does not send room frames, starting with "#room " outside the default
+     *             room
+     * @return the room the message was most likely sent to
+     */
+    private static String labelledRoom(String text) {
+        int space = text.indexOf(' ');
+        if (text.startsWith("#") && space > 1) {
+            return text.substring(1, space);
+        }
+        return DEFAULT_ROOM;
+    }
+
+    /**
+     * Records the newest message seen in the room a message was sent to
+     * @param room the room the message was sent to
+     * @param sequence the message's sequence number in its room
+     * @param history true for a HISTORY frame, which may be older than messages already seen
+     * @return the room
+     */
+    private String seen(String room, long sequence, boolean history) {
+        if (!rooms.containsKey(room)) {
+            //A room whose history arrives before its join notice, one the user has just left, or from an older
+            //server, a name starting with "#" in the default room
+            if (!room.equals(DEFAULT_ROOM)) {
+                joining.merge(room, sequence, Math::max);
+            }
+            return room;
+        }
+        //Live messages arrive in order, so they are always the newest, even from a server that has restarted
+        //without a journal and numbers its messages from the start again
+        if (!history || sequence > rooms.get(room)) {
+            rooms.put(room, sequence);
         }
+        return room;
+    }
 
+    /**
+     * Keeps track of the rooms the user is in from the server's notices
+     * @param notice the notice
+     */
+    private void roomNotice(String notice) {
+        if (notice.startsWith(JOINED_NOTICE) && notice.endsWith(".")) {
+            String room = notice.substring(JOINED_NOTICE.length(), notice.length() - 1);
+            Long newest = rooms.remove(room);
+            if (newest == null) {
+                newest = joining.remove(room);
+            }
+            //Moved to the end, as the room messages are sent to
+            rooms.put(room, newest == null ? -1L : newest);
+        }
+        else if (notice.startsWith(LEFT_NOTICE) && notice.indexOf('.') > LEFT_NOTICE.length()) {
+            String room = notice.substring(LEFT_NOTICE.length(), notice.indexOf('.'));
+            rooms.remove(room);
+            joining.remove(room);
+        }
+        currentRoom = rooms.isEmpty() ? null : rooms.lastEntry().getKey();
+    }
+
+    /**
+     * @return the room the user's messages are sent to, or null if they are in no room or the server does not use
+     *         frames
+     */
+    public String currentRoom() {
+        return currentRoom;
+    }
+
+    /**
+     * Sends a "/history" command typed by the GUI rather than the user
+     * @param command the command
+     * @return false if the server does not use frames, so its messages have no sequence numbers to ask for
+     */
+    public boolean requestHistory(String command) {
+        if (!framed) {
+            return false;
+        }
+        sendMessage(ChatProtocol.frame(ChatProtocol.MESSAGE, new byte[0], command));
+        return true;
+    }
+
+    /**
+     * Displays a frame received from the server. The sequence number sent with history messages is shown so that
+     * users can ask for the messages around it with /history. A PING is answered straight away rather than shown, so
+     * the server knows this client is still there.
+     * @param frame the frame
+     * @throws IOException if a frame is too short for its sequence number or room name, which is treated as the
+     * connection breaking
+     */
+    private void show(ChatProtocol.Frame frame) throws IOException {
+        if (frame.getType() == ChatProtocol.MESSAGE || frame.getType() == ChatProtocol.HISTORY) {
+            boolean history = frame.getType() == ChatProtocol.HISTORY;
+            long sequence = frame.sequence();
+            String text = roomFrames ? frame.roomText() : frame.text(8);
+            String room = seen(roomFrames ? frame.room() : labelledRoom(text), sequence, history);
+            outMessage(room, sequence, history ? "[" + sequence + "] " + text : text, history);
+        }
+        else if (frame.getType() == ChatProtocol.PING) {
+            writeFrame(ChatProtocol.frame(ChatProtocol.PONG, ChatProtocol.sequencePrefix(frame.sequence()), null));
+        }
+        else if (frame.getType() == ChatProtocol.NOTICE) {
+            String notice = frame.text(0);
+            roomNotice(notice);
+            out(notice);
+        }
+        else if (frame.getType() == ChatProtocol.SHUTDOWN) {
+            //The server closes the connection once it has sent everything queued, which is then not an error
+            serverShutDown = true;
+            out(frame.text(0));
+        }
     }
 
     /**
@@ -118,14 +582,29 @@ public class ClientCommunicationLogic {
     }
 
     /**
-     * Displays a message to the user
+     * Displays a chat message to the user. The GUI is also given its room and sequence number, so it can ask for
+     * the messages before it.
+     * @param room the room the message was sent to
+     * @param sequence the message's sequence number in its room
+     * @param s the message to be displayed
+     * @param history true if it was sent as history
+     */
+    private void outMessage(String room, long sequence, String s, boolean history) {
+        if (usingGUI) {
+            guiController.addMessage(room, sequence, s, history);
+        } else {
+            System.out.println(s);
+        }
+    }
+
+    /**
+     * Displays a message to the user. The GUI queues it to be shown at its next pulse, with any others that arrive
+     * before then.
      * @param s the message to be displayed
      */
     private synchronized void out(String s ) {
         if (usingGUI) {
-            Platform.runLater(() -> {
-                guiController.updateLabel(s);
-            });
+            guiController.updateLabel(s);
         } else {
             System.out.println(s);
         }
@@ -0,0 +1,51 @@
+/**
+ * A single client connection as seen by ChatServer, regardless of whether it is served by its own threads
+ * (ServerCommunicationLogic) or by a shared event loop (NioConnection)
+ */
+
+import java.util.Iterator;
+
+public interface ClientConnection {
+
+    /**
+     * Sends a message that has already been encoded, so a broadcast only has to encode each message once
+     * @param message the message to be sent to the client
+     */
+    void send(EncodedMessage message);
+
+    /**
+     * Sends a stream of history batches to the client ahead of any waiting messages. Batches are read from the
+     * stream as the client is ready for them.
+     * @param batches the batches to be sent
+     */
+    void stream(Iterator<EncodedMessage> batches);
+
+    /**
+     * Sends a notice from the server to the client
+     * @param s the message to be sent to the client
+     */
+    default void stringToClient(String s) {
+        send(EncodedMessage.notice(s));
+    }
+
+    /**
+     * @return the number of messages this client never received because it could not keep up
+     */
+    long getDroppedMessages();
+
+    /**
+     * @return the number of messages waiting to be written to this client
+     */
+    int queuedMessages();
+
+    /**
+     * Stops taking new messages, writes the ones already queued and then closes the connection. Used when the server
+     * shuts down.
+     */
+    void finish();
+
+    /**
+     * Closes the connection straight away, dropping anything still queued
+     */
+    void close();
+}
@@ -0,0 +1,195 @@
+/**
+ * The client's side of its connection to the server. It holds one buffered reader and one buffered writer for the
+ * whole life of the socket, so bytes read ahead are never thrown away, and nothing is allocated per message beyond
+ * the message itself.
+ * Messages to the server are put on a queue and written by the transport's own writer thread, so the thread that
+ * sends them, such as the JavaFX thread, never waits on the network. Everything waiting when the writer wakes up is
+ * written together with a single flush, so a backlog of messages costs one write to the socket rather than one each.
+ * Messages that were never written when the connection fails are kept, so they can be sent again on a new one.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class ClientTransport {
+
+    //The most that is gathered into one write, in bytes
+    private static final int WRITE_BUFFER_LENGTH = 64 * 1024;
+
+    private Socket socket;
+    private BufferedInputStream in;
+    private DataInputStream frameIn;
+    //Only made if the server turns out to speak the line protocol
+    private BufferedReader lineIn;
+    private OutputStream out;
+    private ArrayDeque<byte[]> outgoing = new ArrayDeque<>();
+    //Taken off outgoing by the writer and not yet flushed. Only changed under the lock, so close can hand it back.
+    private List<byte[]> writing = new ArrayList<>();
+    private boolean closed;
+    private ReentrantLock lock = new ReentrantLock();
+    private Condition notEmpty = lock.newCondition();
+    private Runnable writeFailed;
+
+    /**
+     * Wraps the socket's streams and starts the writer thread
+     * @param socket a connected socket
+     * @param writeFailed called once, on the writer thread, if a write to the server fails
+     * @throws IOException if the socket's streams cannot be opened
+     */
+    public ClientTransport(Socket socket, Runnable writeFailed) throws IOException {
+        this.socket = socket;
+        this.writeFailed = writeFailed;
+        in = new BufferedInputStream(socket.getInputStream());
+        frameIn = new DataInputStream(in);
+        out = new BufferedOutputStream(socket.getOutputStream(), WRITE_BUFFER_LENGTH);
+        Thread writer = new Thread(this::writeLoop, "client-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues bytes to be written to the server without waiting for them to be written
+     * @param bytes whole frames, or a whole line including its line separator
+     * @return false if the connection has failed or been closed, in which case the bytes are not sent
+     */
+    public boolean send(byte[] bytes) {
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            outgoing.addLast(bytes);
+            notEmpty.signal();
+            return true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues a line for a server that speaks the line protocol, encoded in the same way as a PrintWriter would
+     * @param line the line, without a line separator
+     * @return false if the connection has failed or been closed
+     */
+    public boolean sendLine(String line) {
+        return send((line + System.lineSeparator()).getBytes(Charset.defaultCharset()));
+    }
+
+    /**
+     * Waits for and reads a whole frame from the server
+     * @return the frame
+     * @throws IOException if the connection ends or the frame is not valid
+     */
+    public ChatProtocol.Frame readFrame() throws IOException {
+        return ChatProtocol.readFrame(frameIn);
+    }
+
+    /**
+     * Waits for and reads a line from a server that speaks the line protocol
+     * @return the line, or null once the server has closed the connection
+     * @throws IOException if the connection fails
+     */
+    public String readLine() throws IOException {
+        if (lineIn == null) {
+            lineIn = new BufferedReader(new InputStreamReader(in, Charset.defaultCharset()));
+        }
+        return lineIn.readLine();
+    }
+
+    /**
+     * @return the socket the transport uses
+     */
+    public Socket getSocket() {
+        return socket;
+    }
+
+    /**
+     * Stops the writer and closes the socket
+     * @return the messages not yet written, oldest first, including those being written when the transport was closed
+     *         or a write failed, which the server may have received some or all of
+     */
+    public List<byte[]> close() {
+        List<byte[]> unsent;
+        lock.lock();
+        try {
+            closed = true;
+            unsent = new ArrayList<>(writing);
+            unsent.addAll(outgoing);
+            //Replaced rather than cleared, as the writer may still be walking the old list
+            writing = new ArrayList<>();
+            outgoing.clear();
+            notEmpty.signal();
+        }
+        finally {
+            lock.unlock();
+        }
+        try {
+            socket.close();
+        }
+        catch (IOException e) {
+        }
+        return unsent;
+    }
+
+    private void writeLoop() {
+        while (true) {
+            lock.lock();
+            try {
+                while (outgoing.isEmpty() && !closed) {
+                    notEmpty.awaitUninterruptibly();
+                }
+                if (closed) {
+                    return;
+                }
+                writing.addAll(outgoing);
+                outgoing.clear();
+            }
+            finally {
+                lock.unlock();
+            }
+            try {
+                //Only added to by this thread, and close replaces it rather than changing it, so it is safe to walk
+                //without the lock
+                for (byte[] bytes : writing) {
+                    out.write(bytes);
+                }
+                out.flush();
+            }
+            catch (IOException e) {
+                lock.lock();
+                try {
+                    if (closed) {
+                        return;
+                    }
+                    //Left in writing, ahead of anything queued since, for close to hand back
+                    closed = true;
+                }
+                finally {
+                    lock.unlock();
+                }
+                writeFailed.run();
+                return;
+            }
+            lock.lock();
+            try {
+                writing.clear();
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+    }
+}
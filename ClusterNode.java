@@ -0,0 +1,418 @@
+/**
+ * Joins several ChatServer processes into one chat. One node is the leader: it gives every message its sequence
+ * number, as a single server does, and sends each numbered message to every other node in sequence order. The other
+ * nodes are followers: they send the messages their users type to the leader rather than storing them, and store and
+ * broadcast what the leader sends back. Every node therefore holds the same history with the same sequence numbers,
+ * so a user who reconnects to a different node sees the same messages and can page through them with /history.
+ *
+ * The nodes talk over their own port with ChatProtocol frames. Every node is started with the same -clustersecret, and
+ * the leader only accepts a follower that proves it holds the secret by answering a random challenge with an HMAC of
+ * it. Relayed messages are checked like a user's: the room must be a valid name and fit within -maxrooms.
+ * When a follower connects it sends the newest sequence
+ * number it holds for each room, and the leader sends it everything it has missed before any new messages, so a
+ * follower that loses its link catches up when it reconnects. There is no election: if the leader stops, followers
+ * keep serving their users' history and keep trying to reconnect, but new messages cannot be sent until it is back.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+public class ClusterNode {
+
+    //A follower that falls this far behind is disconnected, and catches up from the history when it reconnects
+    private static final int LINK_QUEUE_CAPACITY = 65536;
+    private static final int CATCH_UP_BATCH = 256;
+    private static final long FIRST_RETRY_MILLIS = 500;
+    private static final long MAX_RETRY_MILLIS = 10000;
+    private static final int CHALLENGE_LENGTH = 16;
+    //A node that has not finished the handshake by then is disconnected, so it cannot hold the accept thread's slot
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 10000;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private ChatServer server;
+    private DataStore dataStore;
+    private boolean leader;
+    private byte[] secret;
+    //On the leader, the link to each follower
+    private CopyOnWriteArrayList<Link> followers = new CopyOnWriteArrayList<>();
+    //Taken by replicate and while a follower is added, so a follower never misses a message between its catch-up
+    //and the messages sent after it
+    private ReentrantLock followersLock = new ReentrantLock();
+    //On a follower, the link to the leader while it is up
+    private volatile Link leaderLink;
+
+    private ClusterNode(ChatServer server, DataStore dataStore, boolean leader, String secret) {
+        this.server = server;
+        this.dataStore = dataStore;
+        this.leader = leader;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Starts this server as the cluster's leader, accepting followers on their own port
+     * @param server the server this node belongs to
+     * @param dataStore the server's dataStore, which holds the history every follower copies
+     * @param port the port followers connect to
+     * @param secret the secret every follower must prove it holds
+     * @return the node
+     * @throws IOException if the port cannot be opened
+     */
+    public static ClusterNode lead(ChatServer server, DataStore dataStore, int port, String secret)
+            throws IOException {
+        ClusterNode node = new ClusterNode(server, dataStore, true, secret);
+        ServerSocket nodeSocket = new ServerSocket(port);
+        Thread acceptThread = new Thread(() -> {
+            while (!nodeSocket.isClosed()) {
+                try {
+                    node.followerConnected(nodeSocket.accept());
+                }
+                catch (IOException e) {
+                    System.out.println("A cluster node could not connect: " + e.getMessage());
+                }
+            }
+        }, "cluster-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        System.out.println("Leading the cluster. Other nodes can join on port " + port + ".");
+        return node;
+    }
+
+    /**
+     * Starts this server as a follower, which connects to the leader and keeps reconnecting whenever the link is lost
+     * @param server the server this node belongs to
+     * @param dataStore the server's dataStore, which is filled with the messages numbered by the leader
+     * @param host the leader's host name
+     * @param port the leader's cluster port
+     * @param secret the secret the leader was started with
+     * @return the node
+     */
+    public static ClusterNode follow(ChatServer server, DataStore dataStore, String host, int port, String secret) {
+        ClusterNode node = new ClusterNode(server, dataStore, false, secret);
+        Thread linkThread = new Thread(() -> node.followLoop(host, port), "cluster-link");
+        linkThread.setDaemon(true);
+        linkThread.start();
+        return node;
+    }
+
+    /**
+     * @return true if this node numbers the messages, false if it sends them to the leader
+     */
+    public boolean isLeader() {
+        return leader;
+    }
+
+    /**
+     * @return the number of other nodes this node currently has a link to
+     */
+    public int linkCount() {
+        return leader ? followers.size() : leaderLink == null ? 0 : 1;
+    }
+
+    /**
+     * Sends a message typed by a user on this follower to the leader, which numbers it and sends it back to every
+     * node, this one included
+     * @param room the room the message was sent to
+     * @param message the message, in the form "name: text"
+     * @return false if there is no link to the leader, so the message could not be sent
+     */
+    public boolean forward(String room, String message) {
+        Link link = leaderLink;
+        if (link == null) {
+            return false;
+        }
+        link.send(EncodedMessage.relay(room, message));
+        return true;
+    }
+
+    /**
+     * Sends a message the leader has just numbered to every follower. The caller must hold the lock it numbered the
+     * message under, so each follower receives each room's messages in sequence order.
+     * @param room the room the message was sent to
+     * @param sequence the sequence number the message was given
+     * @param message the message
+     */
+    public void replicate(String room, long sequence, String message) {
+        followersLock.lock();
+        try {
+            if (!followers.isEmpty()) {
+                EncodedMessage ordered = EncodedMessage.ordered(room, sequence, message);
+                for (Link link : followers) {
+                    link.send(ordered);
+                }
+            }
+        }
+        finally {
+            followersLock.unlock();
+        }
+    }
+
+    /**
+     * @param challenge the random bytes the leader sent
+     * @return the HMAC of the challenge keyed with the cluster secret
+     */
+    private byte[] answer(byte[] challenge) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            return mac.doFinal(challenge);
+        }
+        catch (GeneralSecurityException e) {
+            //Every JDK provides HmacSHA256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Checks a new follower's answer to the challenge, then reads its SYNC frame on its own thread, sends it the
+     * messages it is missing and then adds it to the followers, and afterwards hands each message it relays to the
+     * server
+     * @param socket the follower's socket
+     */
+    private void followerConnected(Socket socket) {
+        Link link = new Link(socket);
+        Thread readerThread = new Thread(() -> {
+            try {
+                socket.setTcpNoDelay(true);
+                socket.setKeepAlive(true);
+                socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                if (in.readByte() != ChatProtocol.MAGIC[0]) {
+                    throw new IOException("Unknown protocol");
+                }
+                ChatProtocol.readMagic(in);
+                //Nothing is queued on the link until the follower is added, so its writer is not using the socket yet
+                byte[] challenge = new byte[CHALLENGE_LENGTH];
+                RANDOM.nextBytes(challenge);
+                OutputStream out = socket.getOutputStream();
+                out.write(ChatProtocol.frame(ChatProtocol.AUTH, challenge, null));
+                out.flush();
+                ChatProtocol.Frame auth = ChatProtocol.readFrame(in);
+                if (auth.getType() != ChatProtocol.AUTH
+                        || !MessageDigest.isEqual(auth.getBytes(), answer(challenge))) {
+                    System.out.println("A cluster node from " + socket.getRemoteSocketAddress() + " gave the wrong " +
+                            "secret. Start every node with the same -clustersecret.");
+                    throw new IOException("Wrong cluster secret");
+                }
+                ChatProtocol.Frame sync = ChatProtocol.readFrame(in);
+                if (sync.getType() != ChatProtocol.SYNC) {
+                    throw new IOException("Expected a SYNC frame");
+                }
+                if (!addFollower(link, ChatProtocol.readSync(sync))) {
+                    System.out.println("A cluster node holds messages this leader does not have, so it cannot join. " +
+                            "Start the leader with -journal so that its history survives a restart.");
+                    throw new IOException("Follower is ahead of the leader");
+                }
+                socket.setSoTimeout(0);
+                System.out.println("A cluster node joined from " + socket.getRemoteSocketAddress() + ". Nodes: " +
+                        (followers.size() + 1));
+                while (true) {
+                    ChatProtocol.Frame frame = ChatProtocol.readFrame(in);
+                    if (frame.getType() == ChatProtocol.RELAY) {
+                        server.relayed(frame.room(), frame.roomText());
+                    }
+                }
+            }
+            catch (IOException | RuntimeException e) {
+                if (e instanceof RuntimeException) {
+                    System.out.println("Closing a cluster link after an error: " + e);
+                }
+                link.close();
+                if (followers.remove(link)) {
+                    System.out.println("A cluster node left. Nodes: " + (followers.size() + 1));
+                }
+            }
+        }, "cluster-follower");
+        readerThread.setDaemon(true);
+        readerThread.start();
+    }
+
+    /**
+     * Queues everything the follower is missing, newest sequence number first looked up under the lock, and adds it
+     * to the followers before any later message can be replicated. A message numbered while the catch-up is queued
+     * may be sent twice, which the follower ignores, but none can be missed.
+     * @param link the follower's link
+     * @param held the newest sequence number the follower holds in each room
+     * @return false if the follower holds newer messages than the leader, which happens when the leader has restarted
+     * without a journal. Its history would no longer match the leader's sequence numbers.
+     */
+    private boolean addFollower(Link link, Map<String, Long> held) {
+        //Waiting for a room's replay under the lock would hold up every message replicated meanwhile
+        dataStore.awaitRooms();
+        followersLock.lock();
+        try {
+            for (Map.Entry<String, Long> room : held.entrySet()) {
+                //Looking up a room the leader does not have would create it
+                long last = dataStore.hasRoom(room.getKey()) ? dataStore.lastSequence(room.getKey()) : -1;
+                if (room.getValue() > last) {
+                    return false;
+                }
+            }
+            for (String room : dataStore.roomNames()) {
+                long from = held.getOrDefault(room, -1L) + 1;
+                long to = dataStore.lastSequence(room);
+                if (from <= to) {
+                    link.queue.addStream(dataStore.replication(room, from, to, CATCH_UP_BATCH));
+                }
+            }
+            followers.add(link);
+            return true;
+        }
+        finally {
+            followersLock.unlock();
+        }
+    }
+
+    /**
+     * @return a SYNC frame holding the newest sequence number this follower holds in each room
+     */
+    private byte[] syncFrame() {
+        Map<String, Long> held = new LinkedHashMap<>();
+        for (String room : dataStore.roomNames()) {
+            held.put(room, dataStore.lastSequence(room));
+        }
+        return ChatProtocol.sync(held);
+    }
+
+    /**
+     * Connects to the leader, catches up and then stores every message it sends, reconnecting with a growing delay
+     * whenever the link is lost
+     * @param host the leader's host name
+     * @param port the leader's cluster port
+     */
+    private void followLoop(String host, int port) {
+        long retryMillis = FIRST_RETRY_MILLIS;
+        long connectedAt = 0;
+        while (true) {
+            Socket socket = new Socket();
+            Link link = null;
+            try {
+                socket.connect(new InetSocketAddress(host, port));
+                socket.setTcpNoDelay(true);
+                socket.setKeepAlive(true);
+                socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+                OutputStream out = socket.getOutputStream();
+                out.write(ChatProtocol.MAGIC);
+                out.flush();
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                ChatProtocol.Frame challenge = ChatProtocol.readFrame(in);
+                if (challenge.getType() != ChatProtocol.AUTH) {
+                    throw new IOException("Expected an AUTH frame");
+                }
+                out.write(ChatProtocol.frame(ChatProtocol.AUTH, answer(challenge.getBytes()), null));
+                out.write(syncFrame());
+                out.flush();
+                socket.setSoTimeout(0);
+                link = new Link(socket);
+                leaderLink = link;
+                connectedAt = System.currentTimeMillis();
+                System.out.println("Connected to the cluster leader at " + host + ":" + port + ".");
+
+                while (true) {
+                    ChatProtocol.Frame frame = ChatProtocol.readFrame(in);
+                    if (frame.getType() == ChatProtocol.ORDERED) {
+                        server.replicated(frame.room(), frame.getLong(0), frame.roomText());
+                    }
+                }
+            }
+            catch (IOException | RuntimeException e) {
+                if (e instanceof RuntimeException) {
+                    System.out.println("Closing the link to the cluster leader after an error: " + e);
+                }
+                leaderLink = null;
+                if (link != null) {
+                    link.close();
+                    System.out.println("Lost the link to the cluster leader. Reconnecting.");
+                }
+                else {
+                    try {
+                        socket.close();
+                    }
+                    catch (IOException closeFailed) {
+                    }
+                }
+            }
+            //A link that stayed up for a while starts the delays again, but one the leader keeps refusing does not
+            if (System.currentTimeMillis() - connectedAt > MAX_RETRY_MILLIS) {
+                retryMillis = FIRST_RETRY_MILLIS;
+            }
+            try {
+                Thread.sleep(retryMillis);
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+            retryMillis = Math.min(MAX_RETRY_MILLIS, retryMillis * 2);
+        }
+    }
+
+    /**
+     * One end of a link between two nodes. Messages are queued and written by the link's own writer thread, many at
+     * a time, so the threads relaying or replicating messages never wait on the other node's socket.
+     */
+    private static class Link {
+
+        private final Socket socket;
+        private final OutboundQueue queue = new OutboundQueue(LINK_QUEUE_CAPACITY,
+                OutboundQueue.SlowConsumerPolicy.DISCONNECT);
+
+        private Link(Socket socket) {
+            this.socket = socket;
+            Thread writerThread = new Thread(() -> {
+                try {
+                    OutputStream out = new BufferedOutputStream(socket.getOutputStream(),
+                            OutboundQueue.MAX_WRITE_LENGTH);
+                    List<EncodedMessage> pending = new ArrayList<>();
+                    while (queue.drainTo(pending, OutboundQueue.MAX_WRITE_LENGTH, 0)) {
+                        for (EncodedMessage message : pending) {
+                            message.writeTo(out, EncodedMessage.Format.FRAMED);
+                        }
+                        out.flush();
+                        pending.clear();
+                    }
+                }
+                catch (IOException | InterruptedException e) {
+                    close();
+                }
+            }, "cluster-writer");
+            writerThread.setDaemon(true);
+            writerThread.start();
+        }
+
+        private void send(EncodedMessage message) {
+            if (!queue.offer(message)) {
+                System.out.println("A cluster link is not keeping up with the chat. Disconnecting it.");
+                close();
+            }
+        }
+
+        /**
+         * Closing the socket makes the reader on this link fail, which handles the node leaving
+         */
+        private void close() {
+            queue.close();
+            try {
+                socket.close();
+            }
+            catch (IOException e) {
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/**
+ * The set of connected clients that every broadcast is sent to. Clients are spread over a number of stripes, each an
+ * array which is copied when a client joins or leaves it. A broadcast walks the current array of each stripe without
+ * taking a lock, so it is never held up by, and never fails because of, clients connecting or disconnecting. Copying
+ * a stripe rather than the whole set keeps joining and leaving cheap with many clients connected.
+ */
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+public class ConnectionSet {
+
+    private static final int STRIPES = 16;
+    private static final ClientConnection[] EMPTY = new ClientConnection[0];
+
+    private AtomicReferenceArray<ClientConnection[]> stripes = new AtomicReferenceArray<>(STRIPES);
+    //Only held while a stripe is copied, never during a broadcast
+    private ReentrantLock[] stripeLocks = new ReentrantLock[STRIPES];
+    private AtomicInteger size = new AtomicInteger();
+
+    public ConnectionSet() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes.set(i, EMPTY);
+            stripeLocks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Adds a client to the set
+     * @param connection the client to be added
+     */
+    public void add(ClientConnection connection) {
+        int stripe = stripeOf(connection);
+        stripeLocks[stripe].lock();
+        try {
+            ClientConnection[] current = stripes.get(stripe);
+            for (ClientConnection member : current) {
+                if (member == connection) {
+                    return;
+                }
+            }
+            ClientConnection[] copy = new ClientConnection[current.length + 1];
+            System.arraycopy(current, 0, copy, 0, current.length);
+            copy[current.length] = connection;
+            stripes.set(stripe, copy);
+            size.incrementAndGet();
+        }
+        finally {
+            stripeLocks[stripe].unlock();
+        }
+    }
+
+    /**
+     * Removes a client from the set
+     * @param connection the client to be removed
+     * @return false if the client was not in the set
+     */
+    public boolean remove(ClientConnection connection) {
+        int stripe = stripeOf(connection);
+        stripeLocks[stripe].lock();
+        try {
+            ClientConnection[] current = stripes.get(stripe);
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == connection) {
+                    ClientConnection[] copy = new ClientConnection[current.length - 1];
+                    System.arraycopy(current, 0, copy, 0, i);
+                    System.arraycopy(current, i + 1, copy, i, current.length - i - 1);
+                    stripes.set(stripe, copy);
+                    size.decrementAndGet();
+                    return true;
+                }
+            }
+            return false;
+        }
+        finally {
+            stripeLocks[stripe].unlock();
+        }
+    }
+
+    /**
+     * @param connection a client
+     * @return true if the client is in the set
+     */
+    public boolean contains(ClientConnection connection) {
+        for (ClientConnection member : stripes.get(stripeOf(connection))) {
+            if (member == connection) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Passes every client to the action. Clients that join part way through may be missed, and clients that leave
+     * part way through may still be passed, but no client that stays connected is ever skipped.
+     * @param action what to do with each client
+     */
+    public void forEach(Consumer<ClientConnection> action) {
+        for (int i = 0; i < STRIPES; i++) {
+            for (ClientConnection connection : stripes.get(i)) {
+                action.accept(connection);
+            }
+        }
+    }
+
+    /**
+     * @return the number of clients in the set
+     */
+    public int size() {
+        return size.get();
+    }
+
+    private static int stripeOf(ClientConnection connection) {
+        int hash = System.identityHashCode(connection);
+        return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+    }
+}
@@ -1,66 +1,425 @@
 /**
  * Class to store all messages received by the server and connection history
- * Many of the methods are synchronized to stop two clients from altering the store simultaneously
+ * Users are kept in a concurrent map and messages in a MessageLog, so clients can alter the store simultaneously
+ * without taking a lock
+ * Each room has its own MessageLog, and its own journal if messages are saved to disk, so each room's messages are
+ * numbered from 0 and its history is paged separately. A room's history is created the first time the room is used.
+ * Replaying a room's journal can take a while, so it is done on a thread of its own rather than a connection's.
  */
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
 
 public class DataStore {
 
-    private ArrayList<String> messages = new ArrayList<>();
-    private ArrayList<ServerCommunicationLogic> users = new ArrayList<>();
-    private ArrayList<Boolean> connectionActive = new ArrayList<>();
+    //The most characters in one batch of history, so that a batch compressed into a single frame stays within
+    //ChatProtocol.MAX_FRAME_LENGTH however long its messages are
+    private static final int MAX_BATCH_LENGTH = 64 * 1024;
 
+    //Each room's history, complete once the room's journal has been replayed
+    private ConcurrentHashMap<String, CompletableFuture<Room>> rooms = new ConcurrentHashMap<>();
+    //Replays the journals of rooms used for the first time, each on its own virtual thread
+    private ExecutorService roomOpener = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("open-room-", 0)
+            .factory());
+    private int historyMessages;
+    private long historyBytes;
+    private long historyAgeMillis;
+    //Set by openJournal, otherwise messages are kept in memory only
+    private volatile Path journalDirectory;
+    private int segmentBytes;
+    //Each active user and the time they connected. Users are removed when they disconnect.
+    private ConcurrentHashMap<ClientConnection, Long> users = new ConcurrentHashMap<>();
+    private AtomicInteger activeConnections = new AtomicInteger();
+    private AtomicLong totalConnections = new AtomicLong();
+
+
+    /**
+     * @param historyMessages the number of messages each room holds before the oldest is evicted
+     * @param historyBytes the estimated heap size of each room's messages before the oldest is evicted
+     * @param historyAgeMillis how long a message is held for, or 0 to hold messages regardless of age
+     */
+    public DataStore(int historyMessages, long historyBytes, long historyAgeMillis) {
+        this.historyMessages = historyMessages;
+        this.historyBytes = historyBytes;
+        this.historyAgeMillis = historyAgeMillis;
+    }
 
     /**
-     * Adds a message to the log of all messages
+     * Adds a message to the log of a room's messages. Not synchronized, as the log does not need a lock.
+     * @param room the room the message was sent to
      * @param message the message to be added
+     * @return the sequence number given to the message within the room
+     */
+    public long addMessage(String room, String message) {
+
+        Room history = room(room);
+        long sequence = history.messages.append(message);
+        if (history.journal != null) {
+            history.journal.append(sequence, message);
+        }
+        return sequence;
+    }
+
+    /**
+     * Stores a message with the sequence number another node gave it. Used by cluster followers, whose messages are
+     * all numbered by the leader and arrive from it in order, so nothing else adds to a follower's rooms.
+     * @param room the room the message was sent to
+     * @param sequence the sequence number the leader gave the message
+     * @param message the message
+     * @return false if the room already holds a message with that sequence number or a later one
+     */
+    public boolean putMessage(String room, long sequence, String message) {
+
+        Room history = room(room);
+        if (sequence <= history.messages.lastSequence()) {
+            return false;
+        }
+        history.messages.restore(sequence, message, System.currentTimeMillis());
+        if (history.journal != null) {
+            history.journal.append(sequence, message);
+        }
+        return true;
+    }
+
+    /**
+     * Looks a message up by sequence number in memory, or in the journal if it has already been evicted from memory
+     * @param room the room the message was sent to
+     * @param sequence the sequence number of the message
+     * @return the message, or null if it is not held anywhere
+     */
+    public String getStoredMessage(String room, long sequence) {
+
+        Room history = room(room);
+        String message = history.messages.get(sequence);
+        if (message == null && history.journal != null) {
+            message = history.journal.read(sequence);
+        }
+        return message;
+    }
+
+    /**
+     * @param room the room
+     * @return the sequence number of the oldest message in the room that can still be fetched
+     */
+    public long firstSequence(String room) {
+        Room history = room(room);
+        if (history.journal != null) {
+            return Math.min(history.journal.firstSequence(), history.messages.firstSequence());
+        }
+        return history.messages.firstSequence();
+    }
+
+    /**
+     * @param room the room
+     * @return the sequence number of the room's newest message, or -1 if there are none
+     */
+    public long lastSequence(String room) {
+        return room(room).messages.lastSequence();
+    }
+
+    /**
+     * Creates a stream of the messages in a range, in batches that are each sent with a single write. Each message is
+     * looked up by its sequence number, and only when its batch is read, so a long history is never held in memory
+     * at once. A batch ends early rather than go over MAX_BATCH_LENGTH characters.
+     * @param room the room the messages were sent to
+     * @param from the sequence number of the first message
+     * @param to the sequence number of the last message
+     * @param batchSize the most messages in each batch
+     * @param heading a notice to send before the messages, or null for none
+     * @return the batches, or null where none of a batch's messages are held any more
+     */
+    public Iterator<EncodedMessage> history(String room, long from, long to, int batchSize, String heading) {
+        return batches(room, from, to, batchSize, heading,
+                (sequence, message) -> EncodedMessage.history(room, sequence, RoomRegistry.label(room, message)));
+    }
+
+    /**
+     * Creates a stream of the messages in a range to be sent to another cluster node, in the same way as history
+     * @param room the room the messages were sent to
+     * @param from the sequence number of the first message
+     * @param to the sequence number of the last message
+     * @param batchSize the most messages in each batch
+     * @return the batches of ORDERED frames
+     */
+    public Iterator<EncodedMessage> replication(String room, long from, long to, int batchSize) {
+        return batches(room, from, to, batchSize, null,
+                (sequence, message) -> EncodedMessage.ordered(room, sequence, message));
+    }
+
+    /**
+     * @param encoder turns a sequence number and stored message into the message to send
+     */
+    private Iterator<EncodedMessage> batches(String room, long from, long to, int batchSize, String heading,
+                                             BiFunction<Long, String, EncodedMessage> encoder) {
+        return new Iterator<EncodedMessage>() {
+
+            private long next = Math.max(from, firstSequence(room));
+            private String firstLine = heading;
+
+            @Override
+            public boolean hasNext() {
+                return firstLine != null || next <= to;
+            }
+
+            @Override
+            public EncodedMessage next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                ArrayList<EncodedMessage> batch = new ArrayList<>();
+                if (firstLine != null) {
+                    batch.add(EncodedMessage.notice(firstLine));
+                    firstLine = null;
+                }
+                long end = Math.min(to, next + batchSize - 1);
+                int length = 0;
+                for (; next <= end; next++) {
+                    String message = getStoredMessage(room, next);
+                    if (message == null) {
+                        continue;
+                    }
+                    if (length > 0 && length + message.length() > MAX_BATCH_LENGTH) {
+                        //Sent at the start of the next batch instead
+                        break;
+                    }
+                    batch.add(encoder.apply(next, message));
+                    length += message.length();
+                }
+                return batch.isEmpty() ? null : EncodedMessage.batch(batch);
+            }
+        };
+    }
+
+    /**
+     * Saves every message added from now on to disk, with each room's journal in its own directory. The default
+     * room's journal is opened and replayed straight away, and other rooms' journals are replayed when the room is
+     * first used.
+     * @param directory the directory to keep the journals in
+     * @param segmentBytes the size of each journal segment file
+     * @throws IOException if the default room's journal cannot be read or created
      */
-    public synchronized void addMessage(String message) {
+    public void openJournal(Path directory, int segmentBytes) throws IOException {
+        this.segmentBytes = segmentBytes;
+        journalDirectory = directory;
+        rooms.put(RoomRegistry.DEFAULT_ROOM, CompletableFuture.completedFuture(openRoom(RoomRegistry.DEFAULT_ROOM)));
+    }
 
-        messages.add(message);
+    /**
+     * Stops every room's journal once it has written the messages already added. A room whose journal is still being
+     * replayed is waited for.
+     */
+    public void closeJournals() {
+        for (CompletableFuture<Room> opening : rooms.values()) {
+            Room history = opening.join();
+            if (history.journal != null) {
+                history.journal.close();
+            }
+        }
     }
 
     /**
-     *
-     * @return the last message to be sent
+     * @param room the room the message was sent to
+     * @param sequence the sequence number returned by addMessage
+     * @return the message with that sequence number, or null if it is no longer held
      */
-    public synchronized String getLastMessage(){
+    public String getMessage(String room, long sequence){
 
-        return messages.get(messages.size()-1);
+        return room(room).messages.get(sequence);
     }
 
     /**
-     * Adds a user to the list of all users
+     * @param room a room name
+     * @return true if the room has been used since the server started
+     */
+    public boolean hasRoom(String room) {
+        return rooms.containsKey(room);
+    }
+
+    /**
+     * @return the names of the rooms that have been used since the server started
+     */
+    public List<String> roomNames() {
+        return new ArrayList<>(rooms.keySet());
+    }
+
+    /**
+     * @return the number of rooms that have been used since the server started
+     */
+    public int roomCount() {
+        return rooms.size();
+    }
+
+    /**
+     * Creates a room's history if it has not been used yet. Its journal is replayed on another thread, so the caller
+     * is never held up, and rooms being opened at the same time do not wait for each other.
+     * @param room a room name, already checked by RoomRegistry
+     * @return completes once the room's history is ready, straight away if it already was
+     */
+    public CompletableFuture<Void> prepareRoom(String room) {
+        return opening(room).thenAccept(history -> { });
+    }
+
+    /**
+     * Waits for every room's journal that is still being replayed
+     */
+    public void awaitRooms() {
+        rooms.values().forEach(CompletableFuture::join);
+    }
+
+    /**
+     * @param room a room name, already checked by RoomRegistry
+     * @return the room's history, created the first time it is asked for. Waits if the room's journal is still being
+     * replayed, which the connections avoid by calling prepareRoom first.
+     */
+    private Room room(String room) {
+        return opening(room).join();
+    }
+
+    private CompletableFuture<Room> opening(String room) {
+        CompletableFuture<Room> opening = rooms.get(room);
+        if (opening != null) {
+            return opening;
+        }
+        //Only starts the replay, so the map's bin is not held while the journal is read
+        return rooms.computeIfAbsent(room, name -> {
+            if (journalDirectory == null) {
+                return CompletableFuture.completedFuture(new Room(newMessageLog(), null));
+            }
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return openRoom(name);
+                }
+                catch (IOException e) {
+                    System.out.println("The journal for #" + name + " could not be opened. Its messages will not " +
+                            "be saved.");
+                    return new Room(newMessageLog(), null);
+                }
+            }, roomOpener);
+        });
+    }
+
+    /**
+     * Creates a room's message log, and replays its journal into it if messages are saved to disk
+     * @param room the room name
+     * @return the room's history
+     * @throws IOException if the journal cannot be read or created
+     */
+    private Room openRoom(String room) throws IOException {
+        MessageLog messages = newMessageLog();
+        Path directory = journalDirectory;
+        if (directory == null) {
+            return new Room(messages, null);
+        }
+        //The name becomes a directory, so only names a user could have made are given one
+        if (!room.equals(RoomRegistry.normalise(room))) {
+            throw new IOException("Invalid room name");
+        }
+        //The default room keeps the top-level directory, so journals written before rooms existed are still read
+        if (!room.equals(RoomRegistry.DEFAULT_ROOM)) {
+            directory = directory.resolve("rooms").resolve(room);
+        }
+        long start = System.nanoTime();
+        MessageJournal journal = new MessageJournal(directory, segmentBytes);
+        int replayed = journal.replay(messages, historyMessages);
+        if (replayed > 0 || room.equals(RoomRegistry.DEFAULT_ROOM)) {
+            System.out.println("Replayed " + replayed + " messages for #" + room + " from the journal in " +
+                    (System.nanoTime() - start) / 1000000 + " ms.");
+        }
+        journal.start();
+        return new Room(messages, journal);
+    }
+
+    private MessageLog newMessageLog() {
+        return new MessageLog(historyMessages, historyBytes, historyAgeMillis);
+    }
+
+    /**
+     * Adds a user to the registry of active users
      * @param user the user to be added
      */
-    public synchronized void addUser(ServerCommunicationLogic user){
-        users.add(user);
-        connectionActive.add(true);
-        System.out.println("New connection! Number of connections: "+activeConnections());
+    public void addUser(ClientConnection user){
+        if (users.putIfAbsent(user, System.currentTimeMillis()) == null) {
+            totalConnections.incrementAndGet();
+            System.out.println("New connection! Number of connections: " + activeConnections.incrementAndGet());
+            System.out.println(historyUsage());
+        }
     }
 
     /**
-     * Make a user inactive on the list of all  by chancing the corresponding active value to false
-     * @param user the user to make inactive
+     * Removes a user from the registry of active users. Removing a user twice has no effect.
+     * @param user the user to remove
      */
-    public synchronized void userNotActive(ServerCommunicationLogic user){
-        connectionActive.set(users.indexOf(user),false);
-        System.out.println("User removed. Number of connections: "+activeConnections());
+    public void userNotActive(ClientConnection user){
+        if (users.remove(user) != null) {
+            System.out.println("User removed. Number of connections: " + activeConnections.decrementAndGet());
+        }
     }
 
     /**
-     * Counts all the active connections by looping through the connectionActive ArrayList
-     * @return the number of active users currently connected
+     * Used as a metric for the memory used by the message history
+     * @return the number of messages held in all rooms and an estimate of the heap they use
      */
-    public int activeConnections(){
-        int count = 0;
-        for(int i = 0; i<connectionActive.size(); i++){
-            if (connectionActive.get(i)) {
-                count++;
+    public String historyUsage() {
+        long size = 0;
+        for (CompletableFuture<Room> opening : rooms.values()) {
+            Room history = opening.getNow(null);
+            if (history != null) {
+                size += history.messages.size();
             }
         }
-        return count;
+        return "Message history: " + size + " messages in " + rooms.size() + " rooms, " + historyBytes() / 1024 + " KB";
     }
 
-}
\ No newline at end of file
+    /**
+     * @return an estimate of the heap used by the messages held in all rooms
+     */
+    public long historyBytes() {
+        long bytes = 0;
+        for (CompletableFuture<Room> opening : rooms.values()) {
+            Room history = opening.getNow(null);
+            if (history != null) {
+                bytes += history.messages.retainedBytes();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the number of active users currently connected
+     */
+    public int activeConnections(){
+        return activeConnections.get();
+    }
+
+    /**
+     * @return the number of users who have connected since the server started
+     */
+    public long totalConnections(){
+        return totalConnections.get();
+    }
+
+    /**
+     * One room's messages, and the journal they are saved to
+     */
+    private static class Room {
+
+        private final MessageLog messages;
+        private final MessageJournal journal;
+
+        private Room(MessageLog messages, MessageJournal journal) {
+            this.messages = messages;
+            this.journal = journal;
+        }
+    }
+}
@@ -0,0 +1,380 @@
+/**
+ * A message ready to be sent down a socket. Each message is encoded at most once for each protocol, however many
+ * clients it is sent to, rather than each client's writer encoding its own copy. The line encoding (including the
+ * line separator) is what a PrintWriter on the socket would produce, and the framed encoding is a ChatProtocol frame.
+ * The compressed encoding is the framed encoding inside a COMPRESSED frame, so a message is compressed once and
+ * shared by every client that asked for compression. Messages shorter than the compression threshold are sent to
+ * those clients as plain frames. Clients that agreed FLAG_ROOMS are sent chat and history messages as room frames,
+ * which are encoded and compressed once for all of them in the same way.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+public class EncodedMessage {
+
+    /**
+     * The protocol a client was found to speak when it connected
+     */
+    public enum Format {
+        LINE, FRAMED, COMPRESSED, FRAMED_ROOMS, COMPRESSED_ROOMS;
+
+        /**
+         * @param flags the options agreed in WELCOME
+         * @return the framed format those options call for
+         */
+        public static Format framed(byte flags) {
+            boolean compress = (flags & ChatProtocol.FLAG_COMPRESS) != 0;
+            if ((flags & ChatProtocol.FLAG_ROOMS) != 0) {
+                return compress ? COMPRESSED_ROOMS : FRAMED_ROOMS;
+            }
+            return compress ? COMPRESSED : FRAMED;
+        }
+    }
+
+    //In bytes of the framed encoding. Set once when the server starts.
+    private static volatile int compressionThreshold = 512;
+    private static LongAdder compressedMessages = new LongAdder();
+    private static LongAdder bytesBeforeCompression = new LongAdder();
+    private static LongAdder bytesAfterCompression = new LongAdder();
+    private static LongAdder compressionNanos = new LongAdder();
+    private static LongAdder bytesSavedOnWire = new LongAdder();
+
+    private byte type;
+    private long sequence;
+    private String text;
+    //Set instead of the fields above for a message made of several messages sent in one write
+    private List<EncodedMessage> parts;
+    private int length;
+    //The number of messages this stands for, which is more than one for a batch
+    private int count = 1;
+    //Filled in the first time each format is needed. Two writers may race to fill one, which only costs an encode.
+    private volatile byte[] lineBytes;
+    private volatile byte[] framedBytes;
+    private volatile byte[] compressedBytes;
+    private volatile byte[] framedRoomBytes;
+    private volatile byte[] compressedRoomBytes;
+    //Only used by WELCOME
+    private byte flags;
+    //Only used by the frames sent between cluster nodes, and by chat and history messages sent as room frames
+    private String room;
+
+    private EncodedMessage(byte type, long sequence, String text) {
+        this.type = type;
+        this.sequence = sequence;
+        this.text = text;
+        this.length = text.length();
+    }
+
+    private EncodedMessage(List<EncodedMessage> parts) {
+        this.parts = parts;
+        this.count = 0;
+        for (EncodedMessage part : parts) {
+            length += part.length;
+            count += part.count;
+        }
+    }
+
+    /**
+     * @param room the room the message was sent to
+     * @param sequence the message's sequence number
+     * @param text the message as shown to users, marked with its room outside the default room
+     * @return a chat message as it is broadcast
+     */
+    public static EncodedMessage chat(String room, long sequence, String text) {
+        EncodedMessage chat = new EncodedMessage(ChatProtocol.MESSAGE, sequence, text);
+        chat.room = room;
+        return chat;
+    }
+
+    /**
+     * @param room the room the message was sent to
+     * @param sequence the message's sequence number
+     * @param text the message as shown to users, marked with its room outside the default room
+     * @return a message from the history, which line clients see as "[sequence] name: text"
+     */
+    public static EncodedMessage history(String room, long sequence, String text) {
+        EncodedMessage history = new EncodedMessage(ChatProtocol.HISTORY, sequence, text);
+        history.room = room;
+        return history;
+    }
+
+    /**
+     * @param text the notice
+     * @return a message from the server itself
+     */
+    public static EncodedMessage notice(String text) {
+        return new EncodedMessage(ChatProtocol.NOTICE, -1, text);
+    }
+
+    /**
+     * @param clientId the id given to the client
+     * @param flags the options the server agreed to out of those asked for in HELLO
+     * @return the reply to a HELLO frame, which is not sent to line clients at all
+     */
+    public static EncodedMessage welcome(int clientId, byte flags) {
+        EncodedMessage welcome = new EncodedMessage(ChatProtocol.WELCOME, clientId, "");
+        welcome.flags = flags;
+        return welcome;
+    }
+
+    /**
+     * @param text why the server is closing
+     * @return the last message sent to each client before the server shuts down
+     */
+    public static EncodedMessage shutdown(String text) {
+        return new EncodedMessage(ChatProtocol.SHUTDOWN, -1, text);
+    }
+
+    /**
+     * @return a heartbeat asking the client to show it is still there, which is not sent to line clients at all
+     */
+    public static EncodedMessage ping() {
+        return new EncodedMessage(ChatProtocol.PING, System.nanoTime(), "");
+    }
+
+    /**
+     * @param room the room the message was sent to
+     * @param sequence the sequence number the leader gave the message
+     * @param text the message, in the form "name: text"
+     * @return a message sent from the cluster leader to another node, which is only ever framed
+     */
+    public static EncodedMessage ordered(String room, long sequence, String text) {
+        EncodedMessage ordered = new EncodedMessage(ChatProtocol.ORDERED, sequence, text);
+        ordered.room = room;
+        return ordered;
+    }
+
+    /**
+     * @param room the room the message was sent to
+     * @param text the message, in the form "name: text"
+     * @return a message sent from a cluster node to the leader to be numbered, which is only ever framed
+     */
+    public static EncodedMessage relay(String room, String text) {
+        EncodedMessage relay = new EncodedMessage(ChatProtocol.RELAY, -1, text);
+        relay.room = room;
+        return relay;
+    }
+
+    /**
+     * @param parts the messages, in the order they are to be sent
+     * @return one message which sends all of the parts in a single write
+     */
+    public static EncodedMessage batch(List<EncodedMessage> parts) {
+        return new EncodedMessage(parts);
+    }
+
+    /**
+     * Joins two messages into one so that they are sent in a single write, without encoding either again
+     * @param first the message to be sent first
+     * @param second the message to be sent second
+     * @return the joined message
+     */
+    public static EncodedMessage concat(EncodedMessage first, EncodedMessage second) {
+        //Kept flat, as repeatedly coalescing onto the same message would otherwise nest it deeper each time
+        ArrayList<EncodedMessage> parts = new ArrayList<>();
+        for (EncodedMessage message : new EncodedMessage[]{first, second}) {
+            if (message.parts != null) {
+                parts.addAll(message.parts);
+            }
+            else {
+                parts.add(message);
+            }
+        }
+        return new EncodedMessage(parts);
+    }
+
+    /**
+     * @param format the protocol of the client it is sent to
+     * @return the bytes to be written, which must not be changed
+     */
+    public byte[] bytes(Format format) {
+        if (format == Format.COMPRESSED) {
+            byte[] bytes = compressedBytes;
+            if (bytes == null) {
+                bytes = compress(Format.FRAMED);
+                compressedBytes = bytes;
+            }
+            bytesSavedOnWire.add(bytes(Format.FRAMED).length - bytes.length);
+            return bytes;
+        }
+        if (format == Format.COMPRESSED_ROOMS) {
+            byte[] bytes = compressedRoomBytes;
+            if (bytes == null) {
+                bytes = compress(Format.FRAMED_ROOMS);
+                compressedRoomBytes = bytes;
+            }
+            bytesSavedOnWire.add(bytes(Format.FRAMED_ROOMS).length - bytes.length);
+            return bytes;
+        }
+        if (format == Format.FRAMED) {
+            byte[] bytes = framedBytes;
+            if (bytes == null) {
+                bytes = encode(format);
+                framedBytes = bytes;
+            }
+            return bytes;
+        }
+        if (format == Format.FRAMED_ROOMS) {
+            byte[] bytes = framedRoomBytes;
+            if (bytes == null) {
+                bytes = encode(format);
+                framedRoomBytes = bytes;
+            }
+            return bytes;
+        }
+        byte[] bytes = lineBytes;
+        if (bytes == null) {
+            bytes = encode(format);
+            lineBytes = bytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * @param format the protocol of the client it is sent to
+     * @return a read-only view of the bytes with its own position, so many channels can write it at once
+     */
+    public ByteBuffer buffer(Format format) {
+        return ByteBuffer.wrap(bytes(format)).asReadOnlyBuffer();
+    }
+
+    /**
+     * Writes the bytes to a stream without copying them first
+     * @param out the stream to write to
+     * @param format the protocol of the client it is sent to
+     * @return the number of bytes written
+     * @throws IOException if the stream cannot be written to
+     */
+    public int writeTo(OutputStream out, Format format) throws IOException {
+        byte[] bytes = bytes(format);
+        out.write(bytes);
+        return bytes.length;
+    }
+
+    /**
+     * @return the number of characters in the message, used to limit how much is coalesced
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * @return the number of messages this stands for, counting each part of a batch or of coalesced messages
+     */
+    public int count() {
+        return count;
+    }
+
+    /**
+     * Compresses the framed encoding, including every part of a batch together so that history compresses well
+     * @param format FRAMED or FRAMED_ROOMS, the encoding to compress
+     * @return a COMPRESSED frame, or the framed encoding itself if it is under the threshold or does not get smaller
+     */
+    private byte[] compress(Format format) {
+        byte[] framed = bytes(format);
+        //WELCOME is always sent as it is, as the client does not yet know compression was agreed
+        if (type == ChatProtocol.WELCOME || framed.length < compressionThreshold) {
+            return framed;
+        }
+        long start = System.nanoTime();
+        byte[] compressed = ChatProtocol.compress(framed);
+        compressionNanos.add(System.nanoTime() - start);
+        compressedMessages.increment();
+        bytesBeforeCompression.add(framed.length);
+        if (compressed.length >= framed.length) {
+            bytesAfterCompression.add(framed.length);
+            return framed;
+        }
+        bytesAfterCompression.add(compressed.length);
+        return compressed;
+    }
+
+    /**
+     * @param threshold the smallest framed message, in bytes, worth compressing
+     */
+    public static void setCompressionThreshold(int threshold) {
+        compressionThreshold = threshold;
+    }
+
+    /**
+     * @return how much compression has saved compared with the CPU time it took, or null if nothing has been
+     * compressed yet
+     */
+    public static String compressionSummary() {
+        long messages = compressedMessages.sum();
+        if (messages == 0) {
+            return null;
+        }
+        long before = bytesBeforeCompression.sum();
+        long after = bytesAfterCompression.sum();
+        return "Compression: " + messages + " messages compressed from " + before + " to " + after + " bytes in " +
+                compressionNanos.sum() / 1000 + " microseconds, " + bytesSavedOnWire.sum() +
+                " bytes saved on the wire.";
+    }
+
+    /**
+     * @return the number of messages compressed since the server started
+     */
+    public static long compressedMessages() {
+        return compressedMessages.sum();
+    }
+
+    /**
+     * @return the number of bytes compression has kept off the wire since the server started
+     */
+    public static long compressionBytesSaved() {
+        return bytesSavedOnWire.sum();
+    }
+
+    private byte[] encode(Format format) {
+        if (parts != null) {
+            byte[][] encodedParts = new byte[parts.size()][];
+            int total = 0;
+            for (int i = 0; i < encodedParts.length; i++) {
+                encodedParts[i] = parts.get(i).bytes(format);
+                total += encodedParts[i].length;
+            }
+            byte[] joined = new byte[total];
+            int position = 0;
+            for (byte[] part : encodedParts) {
+                System.arraycopy(part, 0, joined, position, part.length);
+                position += part.length;
+            }
+            return joined;
+        }
+        if (format == Format.FRAMED_ROOMS && room != null
+                && (type == ChatProtocol.MESSAGE || type == ChatProtocol.HISTORY)) {
+            return ChatProtocol.roomFrame(type, sequence, room, text);
+        }
+        if (format == Format.FRAMED || format == Format.FRAMED_ROOMS) {
+            switch (type) {
+                case ChatProtocol.WELCOME:
+                    return ChatProtocol.frame(type, ByteBuffer.allocate(6).put(ChatProtocol.VERSION).put(flags)
+                            .putInt((int) sequence).array(), null);
+                case ChatProtocol.NOTICE:
+                case ChatProtocol.SHUTDOWN:
+                    return ChatProtocol.frame(type, new byte[0], text);
+                case ChatProtocol.ORDERED:
+                case ChatProtocol.RELAY:
+                    return ChatProtocol.roomFrame(type, sequence, room, text);
+                default:
+                    return ChatProtocol.frame(type, ChatProtocol.sequencePrefix(sequence), text);
+            }
+        }
+        switch (type) {
+            case ChatProtocol.WELCOME:
+            case ChatProtocol.PING:
+                return new byte[0];
+            case ChatProtocol.HISTORY:
+                return ("[" + sequence + "] " + text + System.lineSeparator()).getBytes(Charset.defaultCharset());
+            default:
+                return (text + System.lineSeparator()).getBytes(Charset.defaultCharset());
+        }
+    }
+}
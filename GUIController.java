@@ -1,21 +1,30 @@
 /**
- * Sets up the GUI and contains the logic for GUI-specific operations
+ * Sets up the GUI and contains the logic for GUI-specific operations.
+ * Messages are shown in a ListView, which only makes cells for the rows on screen, so adding a message costs the same
+ * however long the session has been. At most a set number of messages are kept ("-maxlines", 5000 by default), and
+ * older messages can be loaded from the server's history again when they are wanted.
  */
 
 import javafx.application.Application;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
 import javafx.geometry.*;
 import javafx.scene.*;
 import javafx.scene.layout.*;
-import javafx.scene.paint.Color;
 import javafx.scene.text.*;
 import javafx.stage.Stage;
 import javafx.scene.control.*;
 import java.io.IOException;
 import java.net.*;
+import java.util.ArrayList;
+import java.util.List;
 import javafx.concurrent.*;
 
 public class GUIController extends Application {
 
+    //The number of older messages asked for each time
+    private static final int OLDER_PAGE = 100;
+
     private Stage window;
     private Button darkButton;
     private Label titleLabel;
@@ -23,17 +32,24 @@ public class GUIController extends Application {
     private HBox topBarLayout;
     private GridPane bottomBarLayout;
     private static boolean answer;
-    private String userInput, backgroundString;
+    private String userInput;
     private Socket socket;
     private ClientCommunicationLogic communicationLogic;
     private Scene scene;
-    private ScrollPane scroll;
-    private Text text;
+    private ListView<ChatLine> messageView;
+    private ObservableList<ChatLine> messages;
+    //Rows from the reader thread and elsewhere, added to the list once per pulse
+    private UiUpdateQueue<ChatLine> updates;
+    private int maxMessages = InputValidation.DEFAULT_MAX_LINES;
+    //The room whose older messages have been asked for, which are put above those already shown, or null
+    private String olderRoom;
+    private long olderFrom;
+    private long olderTo;
+    private int olderInsertAt;
     private Service<Void> backgroundTaskOut;
     private Service<Void> backgroundTaskIn;
     private String address;
     private int port;
-    private boolean darkModeFlag;
 
     private String userName;
 
@@ -42,8 +58,8 @@ public class GUIController extends Application {
      */
     public GUIController() {
 
-        backgroundString = "Your messages will be displayed here: \n";
-        text = new Text(backgroundString);
+        messages = FXCollections.observableArrayList();
+        updates = new UiUpdateQueue<>(this::show);
 
         //Default
         userName = "User";
@@ -83,6 +99,8 @@ public class GUIController extends Application {
                         if (isCancelled()) {
                             return null;
                         } else {
+                            //Agrees the protocol with the server before reading from it
+                            socket = communicationLogic.handshake(userName);
                             communicationLogic.runIn();
                         }
                         return null;
@@ -111,14 +129,17 @@ public class GUIController extends Application {
 
         darkModeSetup();
         bottomSetup();
-        scrollSetup();
+        messageViewSetup();
         titleSetup();
+        readMaxMessages(getParameters().getRaw());
+        //Anything posted while the setup window was open is shown now the list exists
+        updates.start();
 
         BorderPane borderPane = new BorderPane();
         borderPane.setTop(topBarLayout);
         borderPane.setBottom(bottomBarLayout);
 
-        borderPane.setCenter(scroll);
+        borderPane.setCenter(messageView);
         borderPane.setPadding(new Insets(10, 50, 50, 50));
 
         scene = new Scene(borderPane, 700, 550);
@@ -179,20 +200,23 @@ public class GUIController extends Application {
             }
         });
         sendButton.setOnAction(e -> {
-            //Concatenates username to messages so the user know who sent each message
-            userInput = userName + ": " + textInput.getText();
+            //The username is added by communicationLogic so the user know who sent each message
+            userInput = textInput.getText();
             textInput.clear();
             backgroundTaskOut.restart();
         });
         textInput.setOnAction(e -> {
-            //Concatenates username to messages so the user know who sent each message
-            userInput = userName + ": " + textInput.getText();
+            //The username is added by communicationLogic so the user know who sent each message
+            userInput = textInput.getText();
             textInput.clear();
             backgroundTaskOut.restart();
         });
 
-        HBox test = new HBox();
-        test.getChildren().addAll(darkButton);
+        Button olderButton = new Button("Load older messages");
+        olderButton.setOnAction(e -> loadOlder());
+
+        HBox test = new HBox(20);
+        test.getChildren().addAll(olderButton, darkButton);
         test.setAlignment(Pos.CENTER);
 
 
@@ -215,18 +239,14 @@ public class GUIController extends Application {
         darkButton = new Button("Dark Mode");
         darkButton.setAlignment(Pos.BOTTOM_RIGHT);
         darkButton.setOnAction(e -> {
+            //The message colours come from the style sheet, so rows made later are coloured in the same way
             if (darkButton.getText().equals("Dark Mode")) {
                 scene.getStylesheets().add("Stylesheet.css");
                 titleLabel.setStyle("-fx-text-fill: #326273; -fx-text-bold: true ");
-                scroll.setStyle("-fx-text-color:#84828F; -fx-background-color: #262322");
-                text.setFill(Color.GRAY);
                 darkButton.setText("Light Mode");
-                darkModeFlag = true;
             } else {
                 scene.getStylesheets().clear();
-                text.setFill(Color.BLACK);
                 titleLabel.setStyle("-fx-text-fill: #F42C04");
-                darkModeFlag = false;
                 darkButton.setText("Dark Mode");
             }
 
@@ -235,18 +255,41 @@ public class GUIController extends Application {
     }
 
     /**
-     * Sets up the central part of the BorderPane and contains the constraints on the scrollPane where messages are
-     * displayed
+     * Sets up the central part of the BorderPane, the list where messages are displayed. Long messages wrap onto
+     * more lines rather than widening the list.
      */
-    public void scrollSetup() {
+    public void messageViewSetup() {
+
+        messageView = new ListView<>(messages);
+        messageView.setPrefSize(450, 270);
+        messageView.setFocusTraversable(false);
+        messageView.setPlaceholder(new Label("Your messages will be displayed here."));
+        messageView.setCellFactory(view -> new ListCell<ChatLine>() {
+            {
+                setWrapText(true);
+                setPrefWidth(0);
+            }
 
-        scroll = new ScrollPane();
-        scroll.setVbarPolicy(ScrollPane.ScrollBarPolicy.AS_NEEDED);
-        scroll.setHbarPolicy(ScrollPane.ScrollBarPolicy.NEVER);
+            @Override
+            protected void updateItem(ChatLine line, boolean empty) {
+                super.updateItem(line, empty);
+                setText(empty || line == null ? null : line.text);
+            }
+        });
 
-        scroll.setPrefSize(450, 270);
-        scroll.setContent(text);
+    }
 
+    /**
+     * Reads "-maxlines [count]" from the command line
+     * @param args the command line arguments
+     */
+    private void readMaxMessages(List<String> args) {
+        int flag = args.indexOf("-maxlines");
+        if (flag >= 0) {
+            InputValidation validation = new InputValidation(true);
+            validation.setGUIController(this);
+            maxMessages = validation.convertMaxLines(flag + 1 < args.size() ? args.get(flag + 1) : null);
+        }
     }
 
 
@@ -397,24 +440,158 @@ public class GUIController extends Application {
     }
 
     /**
-     * Adds new messages to the textField
+     * Adds a notice or other text that is not a chat message to the end of the list. Can be called from any thread,
+     * as the message is shown at the next pulse.
      *
      * @param message The message to be added
      */
     public void updateLabel(String message) {
+        updates.post(new ChatLine(null, -1, message == null ? "There is a problem connecting to the server." : message,
+                false));
+    }
 
-        try {
-            backgroundString = backgroundString.concat(message + "\n");
-        } catch (NullPointerException e) {
-            backgroundString = backgroundString.concat("There is a problem connecting to the server.");
+    /**
+     * Adds a chat message, at the end of the list unless it is one of the older messages asked for with the "Load
+     * older messages" button, which go above the messages already shown. Can be called from any thread.
+     * @param room the room the message was sent to
+     * @param sequence the message's sequence number in its room
+     * @param message the message as it is shown
+     * @param history true if it was sent as history rather than as it was typed
+     */
+    public void addMessage(String room, long sequence, String message, boolean history) {
+        updates.post(new ChatLine(room, sequence, message, history));
+    }
+
+    /**
+     * Applies the rows that arrived since the last pulse with one change to the list. If the user was looking at the
+     * newest messages, the list follows them. When there are too many rows the oldest are removed, a quarter of the
+     * limit at a time, so each message costs the same on average rather than moving every row each time.
+     * @param batch the rows, oldest first
+     */
+    private void show(List<ChatLine> batch) {
+        boolean following = atBottom();
+        List<ChatLine> appended = new ArrayList<>(batch.size());
+        List<ChatLine> older = new ArrayList<>();
+        for (ChatLine line : batch) {
+            (isOlder(line) ? older : appended).add(line);
+        }
+        if (!older.isEmpty()) {
+            messages.addAll(olderInsertAt, older);
+            olderInsertAt += older.size();
+            messageView.scrollTo(0);
+            following = false;
         }
+        messages.addAll(appended);
+        if (messages.size() > maxMessages + maxMessages / 4) {
+            int removed = messages.size() - maxMessages;
+            messages.remove(0, removed);
+            olderInsertAt = Math.max(0, olderInsertAt - removed);
+        }
+        if (following && !appended.isEmpty()) {
+            messageView.scrollTo(messages.size() - 1);
+        }
+    }
 
-        text = new Text(backgroundString);
+    /**
+     * @param line a row that has just arrived
+     * @return true if it is one of the older messages asked for, or their heading, "Messages [from] to [to] of
+     *         #room ...", which gives the range the server is sending
+     */
+    private boolean isOlder(ChatLine line) {
+        if (olderRoom == null) {
+            return false;
+        }
+        if (line.room == null) {
+            if (line.text.startsWith("Messages ") && line.text.contains(" of #" + olderRoom + " (")) {
+                String[] words = line.text.split(" ");
+                try {
+                    olderFrom = Long.parseLong(words[1]);
+                    olderTo = Long.parseLong(words[3]);
+                }
+                catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    //Without the range, the messages that follow cannot be told apart from new ones
+                    olderRoom = null;
+                    return false;
+                }
+                return true;
+            }
+            if (line.text.startsWith("No messages in that range")) {
+                olderRoom = null;
+            }
+            return false;
+        }
+        if (line.history && line.room.equals(olderRoom) && line.sequence >= olderFrom && line.sequence <= olderTo) {
+            if (line.sequence == olderTo) {
+                olderRoom = null;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the list is scrolled to its end, or too short to scroll
+     */
+    private boolean atBottom() {
+        for (Node node : messageView.lookupAll(".scroll-bar")) {
+            if (node instanceof ScrollBar bar && bar.getOrientation() == Orientation.VERTICAL) {
+                return !bar.isVisible() || bar.getValue() >= bar.getMax() - 0.001;
+            }
+        }
+        return true;
+    }
 
-        //If dark mode is in use, change the colour of the text
-        if (darkModeFlag) {
-            text.setFill(Color.GRAY);
+    /**
+     * Asks the server for the page of messages before the oldest one shown from the room the user is sending to
+     */
+    private void loadOlder() {
+        String room = communicationLogic.currentRoom();
+        if (room == null) {
+            updateLabel("Join a room to load its older messages.");
+            return;
+        }
+        long oldest = -1;
+        for (ChatLine line : messages) {
+            if (room.equals(line.room)) {
+                oldest = line.sequence;
+                break;
+            }
+        }
+        if (oldest == 0) {
+            updateLabel("There are no older messages in #" + room + ".");
+            return;
+        }
+        //With nothing shown from the room, its newest messages are asked for
+        long to = oldest > 0 ? oldest - 1 : Long.MAX_VALUE;
+        long from = oldest > 0 ? Math.max(0, oldest - OLDER_PAGE) : 0;
+        if (oldest < 0 ? communicationLogic.requestHistory("/history " + OLDER_PAGE)
+                : communicationLogic.requestHistory("/history " + from + " " + to)) {
+            olderRoom = room;
+            olderFrom = from;
+            olderTo = to;
+            olderInsertAt = 0;
+        }
+        else {
+            updateLabel("This server cannot send older messages.");
+        }
+    }
+
+    /**
+     * A row of the message list
+     */
+    private static class ChatLine {
+
+        //Null for notices, which are not part of a room's history
+        private final String room;
+        private final long sequence;
+        private final String text;
+        private final boolean history;
+
+        ChatLine(String room, long sequence, String text, boolean history) {
+            this.room = room;
+            this.sequence = sequence;
+            this.text = text;
+            this.history = history;
         }
-        scroll.setContent(text);
     }
 }
\ No newline at end of file
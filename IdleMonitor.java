@@ -0,0 +1,116 @@
+/**
+ * Notices when a connection has gone quiet and either checks the client is still there or disconnects it. A client
+ * that loses power or its network never closes its TCP connection, so without this the server would keep its threads,
+ * its room memberships and its place in every broadcast forever.
+ * After heartbeat nanoseconds without hearing from a framed client the monitor sends it a PING, and if nothing at all
+ * arrives within another heartbeat the client is taken to be dead. Line clients cannot answer a PING, so they are only
+ * disconnected once they have been idle for the idle timeout, if one is set.
+ * Reading from the client only records the time. The deadline is kept in a TimerWheel shared by every connection, and
+ * when it comes round the monitor works out from that time whether anything needs doing, so a busy connection costs
+ * one volatile write per read rather than moving its deadline each time.
+ */
+
+public class IdleMonitor {
+
+    private TimerWheel timers;
+    private long heartbeatNanos;
+    private long idleNanos;
+    private volatile long lastActivity = System.nanoTime();
+    private Runnable ping;
+    private Runnable close;
+    //Only used on the wheel's thread, apart from stop
+    private long pingSentAt;
+    private boolean pingSent;
+    private volatile TimerWheel.Timeout timeout;
+    private volatile boolean stopped;
+
+    /**
+     * @param timers the wheel that keeps the deadlines
+     * @param heartbeatMillis how long a framed client may be silent before it is pinged, and then how long it has
+     *                        to answer, or 0 to never ping
+     * @param idleMillis how long any client may be silent before it is disconnected, or 0 for no limit
+     */
+    public IdleMonitor(TimerWheel timers, long heartbeatMillis, long idleMillis) {
+        this.timers = timers;
+        this.heartbeatNanos = heartbeatMillis * 1000000;
+        this.idleNanos = idleMillis * 1000000;
+    }
+
+    /**
+     * Starts watching the connection, once it is known which protocol the client speaks
+     * @param ping sends a PING to the client, or null if the client cannot answer one
+     * @param close disconnects the client. Called on the wheel's thread, so it should only start closing.
+     */
+    public void start(Runnable ping, Runnable close) {
+        this.ping = heartbeatNanos > 0 ? ping : null;
+        this.close = close;
+        lastActivity = System.nanoTime();
+        long delay = nextCheck(0);
+        if (delay > 0) {
+            timeout = timers.schedule(this::check, delay);
+        }
+    }
+
+    /**
+     * Records that something was read from the client
+     */
+    public void activity() {
+        lastActivity = System.nanoTime();
+    }
+
+    /**
+     * Stops watching the connection once it has closed
+     */
+    public void stop() {
+        stopped = true;
+        TimerWheel.Timeout current = timeout;
+        if (current != null) {
+            current.cancel();
+        }
+    }
+
+    private void check() {
+        if (stopped) {
+            return;
+        }
+        long now = System.nanoTime();
+        long idle = now - lastActivity;
+        if (pingSent && lastActivity - pingSentAt > 0) {
+            pingSent = false;
+        }
+        if (idleNanos > 0 && idle >= idleNanos) {
+            System.out.println("Disconnecting a client that has been idle for " + idle / 1000000000 + " s.");
+            close.run();
+            return;
+        }
+        if (pingSent && now - pingSentAt >= heartbeatNanos) {
+            System.out.println("Disconnecting a client that did not answer a heartbeat.");
+            close.run();
+            return;
+        }
+        if (ping != null && !pingSent && idle >= heartbeatNanos) {
+            pingSent = true;
+            pingSentAt = now;
+            ping.run();
+        }
+        timeout = timers.schedule(this::check, nextCheck(idle));
+        if (stopped) {
+            timeout.cancel();
+        }
+    }
+
+    /**
+     * @param idle how long the client has been silent
+     * @return how long until something may need doing, or 0 if nothing ever will
+     */
+    private long nextCheck(long idle) {
+        long next = Long.MAX_VALUE;
+        if (idleNanos > 0) {
+            next = idleNanos - idle;
+        }
+        if (ping != null) {
+            next = Math.min(next, pingSent ? pingSentAt + heartbeatNanos - System.nanoTime() : heartbeatNanos - idle);
+        }
+        return next == Long.MAX_VALUE ? 0 : Math.max(1, next);
+    }
+}
@@ -3,10 +3,14 @@
  */
 
 import javafx.application.Application;
-import javafx.application.Platform;
 
 public class InputValidation {
 
+    //The number of messages the GUI keeps, and the range it can be set to with "-maxlines"
+    public static final int DEFAULT_MAX_LINES = 5000;
+    public static final int MIN_MAX_LINES = 100;
+    public static final int MAX_MAX_LINES = 1000000;
+
     private boolean usingGUI;
     private GUIController guiController;
     private String address;
@@ -85,16 +89,44 @@ public class InputValidation {
         return Integer.parseInt(port);
     }
 
+    /**
+     * Converts the inputted number of messages for the GUI to keep to one it can use
+     * @param maxLines the inputted number, or null if none was given
+     * @return the new number of messages to keep
+     */
+    public int convertMaxLines(String maxLines){
+
+        if (maxLines == null) {
+            out("No value after flag: \"-maxlines\". A default value of " + DEFAULT_MAX_LINES + " is being used");
+            return DEFAULT_MAX_LINES;
+        }
+        int lines;
+        try{
+            lines = Integer.parseInt(maxLines);
+        }
+        catch(NumberFormatException e){
+            out("Invalid value after \"-maxlines\". " + DEFAULT_MAX_LINES + " is being used as default.");
+            return DEFAULT_MAX_LINES;
+        }
+        if (lines < MIN_MAX_LINES) {
+            out("\"-maxlines\" is too small. The GUI keeps at least " + MIN_MAX_LINES + " messages.");
+            return MIN_MAX_LINES;
+        }
+        if (lines > MAX_MAX_LINES) {
+            out("\"-maxlines\" is too large. The GUI keeps at most " + MAX_MAX_LINES + " messages.");
+            return MAX_MAX_LINES;
+        }
+        return lines;
+    }
+
     /**
      * Displays a message to the user
      * @param s the message to be displayed
      */
     private synchronized void out(String s ) {
         if (usingGUI) {
-            //Add to the task to the JavaFX application thread queue to ensure the GUI is responsive
-            Platform.runLater(() -> {
-                guiController.updateLabel(s);
-            });
+            //Queued by the GUI and shown at its next pulse, so the JavaFX application thread is not held up
+            guiController.updateLabel(s);
         } else {
             System.out.println(s);
         }
@@ -136,6 +168,10 @@ public class InputValidation {
                                     "being used");
                         }
                     }
+                    else if (args[i].equals("-maxlines")) {
+                        //Checked by GUIController with convertMaxLines once it can show messages, as only the GUI
+                        //keeps the messages it has shown
+                    }
                     else if(args[i].equals("-GUI")){
                         usingGUI = true;
                         //Sets up the GUI
@@ -0,0 +1,131 @@
+/**
+ * Counts how long something took in buckets that grow with the value, in the same way as an HDR histogram: every
+ * power of two is split into SUB_BUCKETS equal buckets, so any value is placed within about 3% of its real size
+ * whether it is a few microseconds or several seconds. Recording a value is a few shifts and one atomic increment,
+ * with no locking and nothing allocated, so it can be done for every message on the broadcast path.
+ * Percentiles are read from a snapshot. Subtracting an earlier snapshot gives the percentiles for just the time in
+ * between.
+ */
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    //Values above about 18 minutes, in nanoseconds, are counted as 18 minutes
+    private static final int MAX_VALUE_BITS = 40;
+    private static final long MAX_VALUE = (1L << MAX_VALUE_BITS) - 1;
+    private static final int BUCKETS = SUB_BUCKETS * (MAX_VALUE_BITS - SUB_BUCKET_BITS + 1);
+
+    private AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /**
+     * @param nanos how long something took. Negative values, which can only come from a clock going backwards, are
+     *              counted as 0.
+     */
+    public void record(long nanos) {
+        counts.incrementAndGet(bucket(Math.min(Math.max(nanos, 0), MAX_VALUE)));
+    }
+
+    /**
+     * @return the counts recorded so far. Values recorded while the snapshot is taken may or may not be included.
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+        }
+        return new Snapshot(copy);
+    }
+
+    private static int bucket(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return SUB_BUCKETS * shift + (int) (value >>> shift);
+    }
+
+    /**
+     * @param bucket a bucket number
+     * @return the largest value counted in the bucket
+     */
+    private static long highestValue(int bucket) {
+        if (bucket < 2 * SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long top = bucket % SUB_BUCKETS + SUB_BUCKETS;
+        return ((top + 1) << shift) - 1;
+    }
+
+    /**
+     * The counts of a histogram at one moment
+     */
+    public static class Snapshot {
+
+        private final long[] counts;
+        private final long total;
+
+        private Snapshot(long[] counts) {
+            this.counts = counts;
+            long sum = 0;
+            for (long count : counts) {
+                sum += count;
+            }
+            this.total = sum;
+        }
+
+        /**
+         * @param earlier a snapshot of the same histogram taken before this one
+         * @return the values recorded between the two snapshots
+         */
+        public Snapshot minus(Snapshot earlier) {
+            long[] difference = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                difference[i] = counts[i] - earlier.counts[i];
+            }
+            return new Snapshot(difference);
+        }
+
+        /**
+         * @return the number of values recorded
+         */
+        public long count() {
+            return total;
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return the value that the given percentage of values were at or below, to within about 3%, or 0 if
+         * nothing was recorded
+         */
+        public long percentile(double percentile) {
+            if (total == 0) {
+                return 0;
+            }
+            long wanted = Math.max(1, (long) Math.ceil(total * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= wanted) {
+                    return highestValue(i);
+                }
+            }
+            return max();
+        }
+
+        /**
+         * @return the largest value recorded, to within about 3%, or 0 if nothing was recorded
+         */
+        public long max() {
+            for (int i = BUCKETS - 1; i >= 0; i--) {
+                if (counts[i] > 0) {
+                    return highestValue(i);
+                }
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,620 @@
+/**
+ * Keeps every accepted message on disk so the history survives a restart. Messages are appended to a series of
+ * segment files by a single journal thread, which writes whatever has built up since its last write and then forces
+ * it to disk once for the whole batch (group commit). Threads adding messages only ever add to a queue, so the
+ * journal does not slow down the broadcast.
+ *
+ * Each segment starts with SEGMENT_MAGIC, and each record is an int length, an int CRC32C of the rest of the record,
+ * a long sequence number, a long timestamp and the message in UTF-8. Segment files are zero filled, so a length of 0
+ * marks the end of the records in a segment. A record whose length or CRC is wrong was torn by a crash while it was
+ * being written, and also ends the segment when the journal is opened again. Segments written before records had a
+ * CRC have no SEGMENT_MAGIC, and are still read but never appended to.
+ *
+ * Only the segment being appended to is memory mapped, and older segments are read from their files. Memory does not
+ * grow with the journal: each segment only remembers where every INDEX_STRIDE'th record is, and a lookup reads
+ * forward from the nearest one. On restart the last segment is appended to again rather than a new one being
+ * started, so restarting does not leave a mostly empty segment behind each time.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+public class MessageJournal {
+
+    private static final int SEGMENT_MAGIC = 0x43484a32;
+    private static final int SEGMENT_HEADER_LENGTH = 4;
+    private static final int HEADER_LENGTH = 24;
+    //Records in segments without SEGMENT_MAGIC have no CRC
+    private static final int LEGACY_HEADER_LENGTH = 20;
+    //One record in this many is indexed, so a lookup reads at most this many record headers
+    private static final int INDEX_STRIDE = 64;
+    private static final int SCAN_BUFFER_LENGTH = 64 * 1024;
+    //Read at once by a lookup, which is usually enough for every record from the indexed one to the one wanted
+    private static final int READ_AHEAD_LENGTH = 16 * 1024;
+    private static final String SUFFIX = ".journal";
+    //Queued by close to tell the journal thread to stop. The thread is not interrupted, as that would close the
+    //segment's FileChannel under it.
+    private static final Record CLOSE = new Record(-1, 0, "");
+
+    private Path directory;
+    private int segmentBytes;
+    //Read by history requests while the journal thread adds to it
+    private CopyOnWriteArrayList<Segment> segments = new CopyOnWriteArrayList<>();
+    private LongAccumulator firstSequence = new LongAccumulator(Math::min, Long.MAX_VALUE);
+    //The segment being appended to and its mapping. Only used by the journal thread once it has started.
+    private Segment current;
+    private MappedByteBuffer currentMap;
+    private LinkedBlockingQueue<Record> pending = new LinkedBlockingQueue<>();
+    private Thread writerThread;
+    private volatile boolean closed;
+
+    /**
+     * Finds the existing segments in the directory, creating it if needed, and checks their records, so a record
+     * torn by a crash is never read. Nothing is written until start is called.
+     * @param directory the directory holding the segment files
+     * @param segmentBytes the size of each segment file
+     * @throws IOException if the directory or a segment cannot be read or created
+     */
+    public MessageJournal(Path directory, int segmentBytes) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(directory);
+        ArrayList<Path> files = new ArrayList<>();
+        try (Stream<Path> list = Files.list(directory)) {
+            list.filter(f -> f.getFileName().toString().endsWith(SUFFIX)).sorted().forEach(files::add);
+        }
+        for (Path file : files) {
+            Segment segment = new Segment(file, Files.size(file), !hasMagic(file));
+            scan(segment, segment.size, (sequence, timestamp, position, next, message) ->
+                    addToIndex(segment, sequence, position, next));
+            segments.add(segment);
+        }
+    }
+
+    /**
+     * Reads the newest records in the journal back into a room's message log, oldest first. Only the segments that
+     * can hold the records the log's history limits can keep are read again, and only those records are decoded.
+     * @param messages the log to fill
+     * @param limit the most messages the log will hold
+     * @return the number of messages restored
+     * @throws IOException if a segment cannot be read
+     */
+    public int replay(MessageLog messages, int limit) throws IOException {
+
+        //The newest segments holding at least limit records, along with any older segment whose records overlap
+        //theirs because they were written out of order
+        long total = 0;
+        long oldestNeeded = Long.MAX_VALUE;
+        for (int s = segments.size() - 1; s >= 0 && total < limit; s--) {
+            total += segments.get(s).records;
+            oldestNeeded = Math.min(oldestNeeded, segments.get(s).first);
+        }
+
+        //First pass: find where each of those records starts without keeping any messages
+        long[][] found = {new long[1024], new long[1024]};
+        int[] count = {0};
+        for (int s = 0; s < segments.size(); s++) {
+            Segment segment = segments.get(s);
+            if (segment.records == 0 || segment.last < oldestNeeded) {
+                continue;
+            }
+            long segmentNumber = s;
+            scan(segment, segment.end, (sequence, timestamp, position, next, message) -> {
+                if (count[0] == found[0].length) {
+                    found[0] = Arrays.copyOf(found[0], count[0] * 2);
+                    found[1] = Arrays.copyOf(found[1], count[0] * 2);
+                }
+                found[0][count[0]] = sequence;
+                found[1][count[0]] = (segmentNumber << 32) | position;
+                count[0]++;
+            });
+        }
+        long[] sequences = found[0];
+        long[] locations = found[1];
+
+        //Records from concurrent senders can reach the journal slightly out of order. Insertion sort is close to
+        //linear on nearly sorted input.
+        for (int i = 1; i < count[0]; i++) {
+            long sequence = sequences[i];
+            long location = locations[i];
+            int j = i - 1;
+            while (j >= 0 && sequences[j] > sequence) {
+                sequences[j + 1] = sequences[j];
+                locations[j + 1] = locations[j];
+                j--;
+            }
+            sequences[j + 1] = sequence;
+            locations[j + 1] = location;
+        }
+
+        //Second pass: decode only the newest records
+        int first = Math.max(0, count[0] - limit);
+        for (int i = first; i < count[0]; i++) {
+            Segment segment = segments.get((int) (locations[i] >>> 32));
+            int position = (int) locations[i];
+            ByteBuffer header = segment.read(position, segment.headerLength());
+            String message = decode(segment.read(position + segment.headerLength(), header.getInt(0)));
+            messages.restore(sequences[i], message, header.getLong(segment.headerLength() - 8));
+        }
+        return count[0] - first;
+    }
+
+    /**
+     * Reads a single message back from disk, starting from the nearest indexed record before it
+     * @param sequence the sequence number of the message
+     * @return the message, or null if the journal does not hold it
+     */
+    public String read(long sequence) {
+        for (int s = segments.size() - 1; s >= 0; s--) {
+            Segment segment = segments.get(s);
+            //Read first, so everything the journal thread did before the record at the end was added is seen
+            int end = segment.end;
+            if (sequence < segment.first || sequence > segment.last) {
+                continue;
+            }
+            try {
+                String message = segment.find(sequence, end);
+                if (message != null) {
+                    return message;
+                }
+            }
+            catch (IOException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the sequence number of the oldest message in the journal, or Long.MAX_VALUE if it is empty
+     */
+    public long firstSequence() {
+        return firstSequence.get();
+    }
+
+    /**
+     * Opens the last segment to append to, or a new one if it is full or was written without CRCs, and starts the
+     * journal thread
+     * @throws IOException if the segment cannot be opened or created
+     */
+    public void start() throws IOException {
+        Segment last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (last != null && !last.legacy && last.end + HEADER_LENGTH < last.size) {
+            reopen(last);
+        }
+        else {
+            roll(segmentBytes);
+        }
+        writerThread = new Thread(this::writeLoop, "journal");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Queues a message to be written. Never waits on the disk.
+     * @param sequence the sequence number of the message
+     * @param message the message
+     */
+    public void append(long sequence, String message) {
+        if (!closed) {
+            pending.add(new Record(sequence, System.currentTimeMillis(), message));
+        }
+    }
+
+    /**
+     * Writes out everything still queued, forces it to disk, stops the journal thread and closes the segment files
+     */
+    public void close() {
+        closed = true;
+        if (writerThread != null) {
+            pending.add(CLOSE);
+            try {
+                writerThread.join(5000);
+            }
+            catch (InterruptedException e) {
+            }
+        }
+        for (Segment segment : segments) {
+            segment.close();
+        }
+    }
+
+    /**
+     * Takes every record queued since the last batch, writes them and forces the batch to disk
+     */
+    private void writeLoop() {
+        ArrayList<Record> batch = new ArrayList<>();
+        boolean stopping = false;
+        while (!stopping) {
+            try {
+                batch.add(pending.take());
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+            pending.drainTo(batch);
+            stopping = batch.remove(CLOSE);
+            try {
+                if (!batch.isEmpty()) {
+                    writeBatch(batch);
+                }
+            }
+            catch (IOException e) {
+                System.out.println("The message journal could not be written: " + e);
+            }
+            batch.clear();
+        }
+    }
+
+    private void writeBatch(ArrayList<Record> batch) throws IOException {
+        //Sorting keeps the journal in order within a batch, so replay rarely has any sorting left to do
+        batch.sort((a, b) -> Long.compare(a.sequence, b.sequence));
+        int batchStart = currentMap.position();
+        for (Record record : batch) {
+            byte[] bytes = record.message.getBytes(StandardCharsets.UTF_8);
+            if (currentMap.remaining() < HEADER_LENGTH + bytes.length) {
+                currentMap.force(batchStart, currentMap.position() - batchStart);
+                roll(Math.max(segmentBytes, SEGMENT_HEADER_LENGTH + HEADER_LENGTH + bytes.length));
+                batchStart = currentMap.position();
+            }
+            int position = currentMap.position();
+            currentMap.putInt(bytes.length);
+            currentMap.putInt(checksum(record.sequence, record.timestamp, bytes));
+            currentMap.putLong(record.sequence);
+            currentMap.putLong(record.timestamp);
+            currentMap.put(bytes);
+            addToIndex(current, record.sequence, position, currentMap.position());
+        }
+        currentMap.force(batchStart, currentMap.position() - batchStart);
+    }
+
+    /**
+     * Creates and maps the next segment file. The segment it replaces is read from its file from now on, so its
+     * mapping can be released.
+     * @param size the size of the new segment
+     */
+    private void roll(int size) throws IOException {
+        Path file = directory.resolve(String.format("%010d", segments.size()) + SUFFIX);
+        MappedByteBuffer map;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        map.putInt(SEGMENT_MAGIC);
+        map.force(0, SEGMENT_HEADER_LENGTH);
+        Segment segment = new Segment(file, size, false);
+        append(segment, map);
+        segments.add(segment);
+    }
+
+    /**
+     * Maps the last segment again to append to it after its last whole record
+     * @param segment the last segment
+     */
+    private void reopen(Segment segment) throws IOException {
+        MappedByteBuffer map;
+        try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0, segment.size);
+        }
+        //A crash can leave part of a record after the last whole one, which could be read as a record again once
+        //shorter ones have been written over its start
+        int dirty = segment.end;
+        while (dirty < map.limit() && map.get(dirty) == 0) {
+            dirty++;
+        }
+        if (dirty < map.limit()) {
+            byte[] zeros = new byte[SCAN_BUFFER_LENGTH];
+            for (int position = segment.end; position < map.limit(); position += zeros.length) {
+                map.put(position, zeros, 0, Math.min(zeros.length, map.limit() - position));
+            }
+            map.force();
+        }
+        map.position(segment.end);
+        append(segment, map);
+    }
+
+    /**
+     * Makes a segment the one appended to
+     * @param segment the segment
+     * @param map the segment's mapping, positioned after its last record
+     */
+    private void append(Segment segment, MappedByteBuffer map) {
+        Segment previous = current;
+        segment.map = map;
+        current = segment;
+        currentMap = map;
+        if (previous != null) {
+            previous.map = null;
+        }
+    }
+
+    /**
+     * Records that a segment holds a message, indexing every INDEX_STRIDE'th record
+     * @param segment the segment
+     * @param sequence the sequence number of the message
+     * @param position where the record starts
+     * @param next where the record after it will start
+     */
+    private void addToIndex(Segment segment, long sequence, int position, int next) {
+        if (segment.records % INDEX_STRIDE == 0) {
+            long[] index = segment.index;
+            int entries = segment.indexEntries;
+            if (2 * entries == index.length) {
+                index = Arrays.copyOf(index, index.length * 2);
+                segment.index = index;
+            }
+            index[2 * entries] = sequence;
+            index[2 * entries + 1] = position;
+            segment.indexEntries = entries + 1;
+        }
+        segment.records++;
+        if (sequence <= segment.last) {
+            segment.sorted = false;
+        }
+        segment.first = Math.min(segment.first, sequence);
+        segment.last = Math.max(segment.last, sequence);
+        //Written last, as readers read it first
+        segment.end = next;
+        firstSequence.accumulate(sequence);
+    }
+
+    /**
+     * Reads a segment's records in the order they were written, stopping at the end of its records or at a record
+     * that was torn by a crash
+     * @param segment the segment
+     * @param limit the position to stop reading at
+     * @param visitor called with each whole record
+     * @throws IOException if the segment cannot be read
+     */
+    private static void scan(Segment segment, long limit, RecordVisitor visitor) throws IOException {
+        int header = segment.headerLength();
+        int position = segment.start();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment.path),
+                SCAN_BUFFER_LENGTH))) {
+            in.skipNBytes(position);
+            while (position + header <= limit) {
+                int length = in.readInt();
+                if (length == 0) {
+                    return;
+                }
+                int checksum = segment.legacy ? 0 : in.readInt();
+                if (length < 0 || position + header + (long) length > limit) {
+                    torn(segment, position);
+                    return;
+                }
+                long sequence = in.readLong();
+                long timestamp = in.readLong();
+                byte[] message = new byte[length];
+                in.readFully(message);
+                if (!segment.legacy && checksum != checksum(sequence, timestamp, message)) {
+                    torn(segment, position);
+                    return;
+                }
+                visitor.record(sequence, timestamp, position, position + header + length, message);
+                position += header + length;
+            }
+        }
+    }
+
+    private static void torn(Segment segment, int position) {
+        System.out.println("The journal file " + segment.path + " has a damaged record at byte " + position + ", " +
+                "left by a crash while it was being written. It and anything after it in that file are ignored.");
+    }
+
+    /**
+     * @param file a segment file
+     * @return true if the file starts with SEGMENT_MAGIC, so its records have a CRC
+     */
+    private static boolean hasMagic(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+            return in.readInt() == SEGMENT_MAGIC;
+        }
+        catch (EOFException e) {
+            return false;
+        }
+    }
+
+    private static int checksum(long sequence, long timestamp, byte[] message) {
+        CRC32C crc = new CRC32C();
+        crc.update(ByteBuffer.allocate(16).putLong(sequence).putLong(timestamp).flip());
+        crc.update(message);
+        return (int) crc.getValue();
+    }
+
+    private static String decode(ByteBuffer bytes) {
+        return StandardCharsets.UTF_8.decode(bytes).toString();
+    }
+
+    /**
+     * Called for each whole record found while reading a segment
+     */
+    private interface RecordVisitor {
+        void record(long sequence, long timestamp, int position, int next, byte[] message) throws IOException;
+    }
+
+    /**
+     * One segment file, with what is needed to find a record in it without keeping every record's location
+     */
+    private static class Segment {
+
+        private final Path path;
+        private final long size;
+        private final boolean legacy;
+        //Only set while the segment is appended to
+        private volatile MappedByteBuffer map;
+        //Opened the first time the segment is read from its file
+        private FileChannel channel;
+        private final ReentrantLock channelLock = new ReentrantLock();
+        //The sequence number and position of every INDEX_STRIDE'th record, one after the other
+        private volatile long[] index = new long[64];
+        private volatile int indexEntries;
+        private int records;
+        private volatile long first = Long.MAX_VALUE;
+        private volatile long last = -1;
+        //False once a record has been written after one with a higher sequence number, so the index cannot be
+        //searched and the whole segment is read instead
+        private volatile boolean sorted = true;
+        //The position after the last record
+        private volatile int end;
+
+        private Segment(Path path, long size, boolean legacy) {
+            this.path = path;
+            this.size = size;
+            this.legacy = legacy;
+            this.end = start();
+        }
+
+        private int start() {
+            return legacy ? 0 : SEGMENT_HEADER_LENGTH;
+        }
+
+        private int headerLength() {
+            return legacy ? LEGACY_HEADER_LENGTH : HEADER_LENGTH;
+        }
+
+        /**
+         * @param sequence the sequence number of the message
+         * @param end the position after the last record the caller knows to be whole
+         * @return the message, or null if the segment does not hold it
+         * @throws IOException if the segment cannot be read
+         */
+        private String find(long sequence, int end) throws IOException {
+            int position = start();
+            boolean inOrder = sorted;
+            if (inOrder) {
+                int entries = indexEntries;
+                long[] entry = index;
+                int low = 0;
+                int high = entries - 1;
+                while (low <= high) {
+                    int middle = (low + high) >>> 1;
+                    if (entry[2 * middle] <= sequence) {
+                        position = (int) entry[2 * middle + 1];
+                        low = middle + 1;
+                    }
+                    else {
+                        high = middle - 1;
+                    }
+                }
+            }
+            int header = headerLength();
+            ByteBuffer block = null;
+            int blockStart = 0;
+            while (position < end) {
+                if (block == null || position + header > blockStart + block.limit()) {
+                    block = read(position, Math.max(header, Math.min(end - position, READ_AHEAD_LENGTH)));
+                    blockStart = position;
+                }
+                int offset = position - blockStart;
+                int length = block.getInt(offset);
+                long recordSequence = block.getLong(offset + header - 16);
+                if (recordSequence == sequence) {
+                    if (offset + header + length <= block.limit()) {
+                        return decode(block.slice(offset + header, length));
+                    }
+                    return decode(read(position + header, length));
+                }
+                if (inOrder && recordSequence > sequence) {
+                    return null;
+                }
+                position += header + length;
+            }
+            return null;
+        }
+
+        /**
+         * @param position where to start reading
+         * @param length the number of bytes to read
+         * @return the bytes, from the mapping while the segment is appended to and from the file afterwards
+         * @throws IOException if the file cannot be read
+         */
+        private ByteBuffer read(int position, int length) throws IOException {
+            MappedByteBuffer mapped = map;
+            if (mapped != null) {
+                return mapped.slice(position, length);
+            }
+            FileChannel file = channel();
+            ByteBuffer bytes = ByteBuffer.allocate(length);
+            try {
+                while (bytes.hasRemaining()) {
+                    if (file.read(bytes, position + bytes.position()) < 0) {
+                        throw new EOFException();
+                    }
+                }
+            }
+            catch (ClosedChannelException e) {
+                //Also thrown if a reading thread was interrupted, which closes the channel for every thread, so the
+                //next read opens it again
+                channelLock.lock();
+                try {
+                    if (channel == file) {
+                        channel = null;
+                    }
+                }
+                finally {
+                    channelLock.unlock();
+                }
+                throw e;
+            }
+            return bytes.flip();
+        }
+
+        private FileChannel channel() throws IOException {
+            channelLock.lock();
+            try {
+                if (channel == null) {
+                    channel = FileChannel.open(path, StandardOpenOption.READ);
+                }
+                return channel;
+            }
+            finally {
+                channelLock.unlock();
+            }
+        }
+
+        private void close() {
+            channelLock.lock();
+            try {
+                if (channel != null) {
+                    channel.close();
+                    channel = null;
+                }
+            }
+            catch (IOException e) {
+            }
+            finally {
+                channelLock.unlock();
+            }
+        }
+    }
+
+    private static class Record {
+
+        private final long sequence;
+        private final long timestamp;
+        private final String message;
+
+        private Record(long sequence, long timestamp, String message) {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.message = message;
+        }
+    }
+}
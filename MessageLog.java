@@ -0,0 +1,248 @@
+/**
+ * A ring buffer of messages in which every message is given a sequence number. Any number of threads may append, and
+ * readers look messages up by sequence number without taking a lock, so storing a message never waits on a broadcast
+ * reading one.
+ * The oldest messages are evicted, one at a time from the front, once the log holds more than its limits on message
+ * count, total size or age allow. The ring is allocated a page at a time as messages first reach each part of it, so a
+ * room that only ever holds a few messages does not pay for a ring sized for the most it could hold.
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+public class MessageLog {
+
+    //Rough heap cost of an entry, its String and the String's array, on top of the characters themselves
+    private static final int ENTRY_OVERHEAD = 64;
+    private static final int PAGE_BITS = 10;
+    //The most messages a log can be asked to hold, which keeps the ring's size within an int
+    public static final int MAX_MESSAGES = 1 << 24;
+
+    //Pages of the ring, each created the first time a message is stored in it and kept from then on
+    private AtomicReferenceArray<AtomicReferenceArray<Entry>> pages;
+    private int pageLength;
+    private int mask;
+    private int maxMessages;
+    private long maxBytes;
+    private long maxAgeMillis;
+    //The next sequence number to be handed to an appending thread
+    private AtomicLong claimed = new AtomicLong();
+    //The highest sequence number that has been stored
+    private AtomicLong published = new AtomicLong(-1);
+    //The sequence number of the oldest message that has not been evicted
+    private AtomicLong oldest = new AtomicLong();
+    private AtomicLong retainedBytes = new AtomicLong();
+
+    /**
+     * @param capacity the number of messages held before the oldest is evicted
+     */
+    public MessageLog(int capacity) {
+        this(capacity, Long.MAX_VALUE, 0);
+    }
+
+    /**
+     * @param maxMessages the number of messages held before the oldest is evicted, at most MAX_MESSAGES
+     * @param maxBytes the estimated heap size of the held messages before the oldest is evicted
+     * @param maxAgeMillis how long a message is held for, or 0 to hold messages regardless of age
+     */
+    public MessageLog(int maxMessages, long maxBytes, long maxAgeMillis) {
+        this.maxMessages = Math.min(MAX_MESSAGES, Math.max(1, maxMessages));
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+        int size = Integer.highestOneBit(Math.max(2, this.maxMessages) - 1) << 1;
+        pageLength = Math.min(size, 1 << PAGE_BITS);
+        pages = new AtomicReferenceArray<>(size / pageLength);
+        mask = size - 1;
+    }
+
+    /**
+     * Adds a message to the end of the log, evicting old messages if this takes the log over its limits
+     * @param message the message to be added
+     * @return the sequence number given to the message
+     */
+    public long append(String message) {
+        long sequence = claimed.getAndIncrement();
+        Entry entry = new Entry(sequence, message, System.currentTimeMillis());
+
+        //The slot can only be reused once the message before it in the slot has been evicted. Waiting is only
+        //needed if the appender of that message has not stored it yet.
+        while (sequence - oldest.get() > mask) {
+            if (!evictOldest()) {
+                LockSupport.parkNanos(1000);
+            }
+        }
+
+        //Each entry carries its own sequence number, so appenders never wait for each other to finish
+        page(sequence).set((int) sequence & mask & (pageLength - 1), entry);
+        retainedBytes.addAndGet(entry.size);
+        published.accumulateAndGet(sequence, Math::max);
+
+        trim();
+        return sequence;
+    }
+
+    /**
+     * Puts back a message with the sequence number it was first given. Used to replay the journal before the server
+     * starts, and by cluster followers for messages numbered by the leader, so it must not be called at the same time
+     * as append or by two threads at once. Messages must be restored in sequence order, but
+     * gaps are allowed.
+     * @param sequence the sequence number the message was first given
+     * @param message the message
+     * @param timestamp the time the message was first received
+     */
+    public void restore(long sequence, String message, long timestamp) {
+        if (sequence < claimed.get()) {
+            return;
+        }
+        if (published.get() < 0) {
+            oldest.set(sequence);
+        }
+        claimed.set(sequence + 1);
+        Entry entry = new Entry(sequence, message, timestamp);
+
+        //Unlike append, a missing message at the front is a gap in the journal rather than one still being stored
+        while (sequence - oldest.get() > mask) {
+            if (!evictOldest()) {
+                oldest.incrementAndGet();
+            }
+        }
+        page(sequence).set((int) sequence & mask & (pageLength - 1), entry);
+        retainedBytes.addAndGet(entry.size);
+        published.set(sequence);
+
+        //Skip over any gap at the front so that trim can evict from it
+        while (oldest.get() < sequence) {
+            Entry front = entry(oldest.get());
+            if (front != null && front.sequence == oldest.get()) {
+                break;
+            }
+            oldest.incrementAndGet();
+        }
+        trim();
+    }
+
+    /**
+     * Evicts messages from the front of the log until it is back within its limits. Each eviction is O(1). Only done
+     * when a message is added, so reading the log never changes it.
+     */
+    private void trim() {
+        long expiry = maxAgeMillis > 0 ? System.currentTimeMillis() - maxAgeMillis : Long.MIN_VALUE;
+        while (true) {
+            long head = oldest.get();
+            Entry entry = entry(head);
+            if (entry == null || entry.sequence != head) {
+                return;
+            }
+            boolean overLimit = published.get() - head >= maxMessages
+                    || retainedBytes.get() > maxBytes
+                    || entry.timestamp < expiry;
+            if (!overLimit || !evictOldest()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @param sequence the sequence number of the message
+     * @return the message, or null if it has not been stored yet or has already been evicted
+     */
+    public String get(long sequence) {
+        if (sequence < oldest.get()) {
+            return null;
+        }
+        Entry entry = entry(sequence);
+        //The slot holds either an older message which has not been overwritten yet or a newer one which replaced it
+        if (entry == null || entry.sequence != sequence) {
+            return null;
+        }
+        return entry.message;
+    }
+
+    /**
+     * @return the sequence number of the newest message, or -1 if the log is empty
+     */
+    public long lastSequence() {
+        return published.get();
+    }
+
+    /**
+     * @return the sequence number of the oldest message still held
+     */
+    public long firstSequence() {
+        return oldest.get();
+    }
+
+    /**
+     * @return the number of messages currently held
+     */
+    public long size() {
+        return Math.max(0, published.get() - oldest.get() + 1);
+    }
+
+    /**
+     * @return the estimated heap used by the messages currently held
+     */
+    public long retainedBytes() {
+        return retainedBytes.get();
+    }
+
+    /**
+     * Removes the message at the front of the log. If several threads try at once only one succeeds.
+     * @return false if the front message has not been stored yet, so nothing could be evicted
+     */
+    private boolean evictOldest() {
+        long head = oldest.get();
+        Entry entry = entry(head);
+        if (entry == null || entry.sequence != head) {
+            return false;
+        }
+        if (oldest.compareAndSet(head, head + 1)) {
+            retainedBytes.addAndGet(-entry.size);
+            //The page exists, as it holds the entry
+            page(head).compareAndSet((int) head & mask & (pageLength - 1), entry, null);
+        }
+        return true;
+    }
+
+    /**
+     * @param sequence a sequence number
+     * @return the entry in the slot for that sequence number, which may belong to another one, or null if the slot
+     *         is empty
+     */
+    private Entry entry(long sequence) {
+        int slot = (int) sequence & mask;
+        AtomicReferenceArray<Entry> page = pages.get(slot >>> PAGE_BITS);
+        return page == null ? null : page.get(slot & (pageLength - 1));
+    }
+
+    /**
+     * @param sequence a sequence number
+     * @return the page holding the slot for that sequence number, created if no message has been stored in it yet
+     */
+    private AtomicReferenceArray<Entry> page(long sequence) {
+        int index = ((int) sequence & mask) >>> PAGE_BITS;
+        AtomicReferenceArray<Entry> page = pages.get(index);
+        if (page == null) {
+            //If two threads race to create it, the one that loses uses the winner's
+            pages.compareAndSet(index, null, new AtomicReferenceArray<>(pageLength));
+            page = pages.get(index);
+        }
+        return page;
+    }
+
+    private static class Entry {
+
+        private final long sequence;
+        private final String message;
+        private final long timestamp;
+        private final long size;
+
+        private Entry(long sequence, String message, long timestamp) {
+            this.sequence = sequence;
+            this.message = message;
+            this.timestamp = timestamp;
+            this.size = ENTRY_OVERHEAD + 2L * message.length();
+        }
+    }
+}
@@ -0,0 +1,410 @@
+/**
+ * A client connection served by a NioEventLoop. The first bytes decide whether the client speaks the frame protocol
+ * or plain lines, in the same way as ServerCommunicationLogic, and writes are queued until the channel is ready to
+ * accept them.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public final class NioConnection implements ClientConnection {
+
+    //The most messages written by a single gathering write
+    private static final int MAX_GATHERED_WRITES = 256;
+
+    private SocketChannel channel;
+    private NioEventLoop eventLoop;
+    private ChatServer server;
+    private SelectionKey key;
+    private ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+    private ByteArrayOutputStream currentLine = new ByteArrayOutputStream();
+    //Frames are collected here until they have fully arrived
+    private ByteBuffer inbound = ByteBuffer.allocate(8192);
+    private volatile EncodedMessage.Format format;
+    private String userName;
+    //The HELLO flags agreed with a framed client
+    private byte flags;
+    private OutboundQueue outboundQueue;
+    //Messages taken from the queue and being written with one gathering write
+    private ByteBuffer[] writes = new ByteBuffer[MAX_GATHERED_WRITES];
+    private int writeOffset;
+    private int writeCount;
+    //The number of messages taken from the queue since the last write was counted
+    private int writeMessages;
+    private AtomicBoolean flushScheduled = new AtomicBoolean();
+    private int flushMillis;
+    private RateLimiter rateLimiter;
+    private IdleMonitor idleMonitor;
+    private ServerMetrics metrics;
+    //Only used on the event loop thread
+    private long readPause;
+    private boolean readingPaused;
+    private AtomicBoolean closed = new AtomicBoolean();
+
+    /**
+     * Adds a new user to the dataStore and switches the channel to non-blocking mode
+     * @param channel the channel accepted in ChatServer
+     * @param eventLoop the event loop that will serve this connection
+     * @param server an object of ChatServer
+     * @param dataStore an object of DataStore
+     * @param outboundQueue holds the messages waiting to be written to this client
+     * @param flushMillis how long to wait for more messages before writing, 0 to write at the end of the event
+     *                    loop's current pass
+     * @param rateLimiter limits how fast the client can send messages
+     * @param idleMonitor pings the client when it goes quiet and disconnects it if it has gone
+     * @throws IOException if the channel cannot be set up
+     */
+    public NioConnection(SocketChannel channel, NioEventLoop eventLoop, ChatServer server, DataStore dataStore,
+                         OutboundQueue outboundQueue, int flushMillis, RateLimiter rateLimiter,
+                         IdleMonitor idleMonitor) throws IOException {
+
+        this.channel = channel;
+        this.eventLoop = eventLoop;
+        this.server = server;
+        this.outboundQueue = outboundQueue;
+        this.flushMillis = flushMillis;
+        this.rateLimiter = rateLimiter;
+        this.idleMonitor = idleMonitor;
+        this.metrics = server.getMetrics();
+        channel.configureBlocking(false);
+        //Lets the operating system find dead peers when the idle checks are turned off
+        channel.socket().setKeepAlive(true);
+        dataStore.addUser(this);
+    }
+
+    /**
+     * Called by the event loop when the channel has data. Until the protocol is known the bytes are checked for the
+     * frame protocol's MAGIC; after that every complete line or frame is handed to the server.
+     */
+    public void handleRead() {
+        try {
+            readBuffer.clear();
+            int read = channel.read(readBuffer);
+            if (read == -1) {
+                throw new IOException();
+            }
+            idleMonitor.activity();
+            readBuffer.flip();
+            if (!readBuffer.hasRemaining()) {
+                return;
+            }
+            if (format == null) {
+                if (inbound.position() == 0 && readBuffer.get(readBuffer.position()) != ChatProtocol.MAGIC[0]) {
+                    started(EncodedMessage.Format.LINE);
+                }
+                else {
+                    appendInbound(readBuffer);
+                    readHello();
+                    return;
+                }
+            }
+            if (format != EncodedMessage.Format.LINE) {
+                appendInbound(readBuffer);
+                readFrames();
+                return;
+            }
+            while (readBuffer.hasRemaining()) {
+                byte b = readBuffer.get();
+                if (b == '\n') {
+                    lineReceived();
+                }
+                else if (currentLine.size() >= ChatProtocol.MAX_FRAME_LENGTH) {
+                    //Held on the event loop until the new line arrives, so a client that never sends one is dropped
+                    //rather than left to fill the heap
+                    throw new IOException("Line too long");
+                }
+                else {
+                    currentLine.write(b);
+                }
+            }
+        }
+        catch (IOException e) {
+            close();
+        }
+        finally {
+            if (readPause > 0 && !closed.get()) {
+                pauseReading();
+            }
+        }
+    }
+
+    /**
+     * Stops reading from a client that is over its rate limits until it is back within them. The messages already
+     * read are still handled, and nothing is dropped.
+     */
+    private void pauseReading() {
+        long pauseMillis = Math.max(1, (readPause + 999999) / 1000000);
+        readPause = 0;
+        readingPaused = true;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        server.throttleStarted(this);
+        eventLoop.schedule(() -> {
+            if (readingPaused) {
+                readingPaused = false;
+                server.throttleEnded(this);
+                if (key.isValid()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                }
+            }
+        }, pauseMillis);
+    }
+
+    /**
+     * Called by the event loop once the channel is registered. A client that has sent nothing when the detection
+     * timeout runs out is treated as a line client, as it may be waiting for the server to speak first.
+     */
+    public void registered() {
+        eventLoop.schedule(() -> {
+            if (format == null && inbound.position() == 0 && !closed.get()) {
+                started(EncodedMessage.Format.LINE);
+            }
+        }, ChatProtocol.DETECT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Called by the event loop when the channel can accept more data. Writes as much of the queue as possible, many
+     * messages at a time, and stops listening for writability once the queue is empty.
+     */
+    public void handleWrite() {
+        if (format == null) {
+            //Nothing can be written until we know how to encode it
+            return;
+        }
+        try {
+            while (writeOffset < writeCount || nextWrites()) {
+                long written = channel.write(writes, writeOffset, writeCount - writeOffset);
+                metrics.written(writeMessages, written);
+                writeMessages = 0;
+                while (writeOffset < writeCount && !writes[writeOffset].hasRemaining()) {
+                    writes[writeOffset++] = null;
+                }
+                if (writeOffset < writeCount) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                writeOffset = 0;
+                writeCount = 0;
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            if (outboundQueue.isFinished()) {
+                close();
+            }
+        }
+        catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Queues a message for the client. The write itself always happens on the event loop thread.
+     * @param message the message to be sent to the client
+     */
+    @Override
+    public void send(EncodedMessage message) {
+        if (closed.get()) {
+            return;
+        }
+        if (!outboundQueue.offer(message)) {
+            System.out.println("Disconnecting a client that is not keeping up with the chat.");
+            eventLoop.execute(this::close);
+            return;
+        }
+        if (eventLoop.inEventLoop() && key != null && outboundQueue.size() >= MAX_GATHERED_WRITES) {
+            //A long burst read in one pass would otherwise fill the queue before the flush at the end of the pass
+            handleWrite();
+        }
+        writeSoon();
+    }
+
+    @Override
+    public void stream(Iterator<EncodedMessage> batches) {
+        outboundQueue.addStream(batches);
+        writeSoon();
+    }
+
+    /**
+     * Arranges for the outbound queue to be written once, at the end of the event loop's current pass or after the
+     * flush window, however many messages are added before then
+     */
+    private void writeSoon() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            if (flushMillis > 0) {
+                eventLoop.schedule(this::flush, flushMillis);
+            }
+            else {
+                eventLoop.execute(this::flush);
+            }
+        }
+    }
+
+    /**
+     * Runs on the event loop thread to write everything queued since writeSoon was called
+     */
+    private void flush() {
+        //Cleared before writing so that a message added during the write schedules another flush
+        flushScheduled.set(false);
+        if (key != null && key.isValid()) {
+            handleWrite();
+        }
+    }
+
+    @Override
+    public long getDroppedMessages() {
+        return outboundQueue.getDropped();
+    }
+
+    @Override
+    public int queuedMessages() {
+        return outboundQueue.size();
+    }
+
+    @Override
+    public void finish() {
+        outboundQueue.finish();
+        writeSoon();
+    }
+
+    /**
+     * Closes the channel and removes the connection from the server. Only the first call has any effect.
+     */
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            idleMonitor.stop();
+            outboundQueue.close();
+            if (readingPaused) {
+                readingPaused = false;
+                server.throttleEnded(this);
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            }
+            catch (IOException e) {
+            }
+            server.removeConnection(this);
+        }
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    public void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    /**
+     * Takes the messages waiting in the outbound queue, up to MAX_WRITE_LENGTH. The buffers share their bytes with
+     * every other recipient.
+     * @return false if there was nothing waiting
+     */
+    private boolean nextWrites() {
+        int bytes = 0;
+        EncodedMessage message;
+        while (writeCount < writes.length && bytes < OutboundQueue.MAX_WRITE_LENGTH
+                && (message = outboundQueue.poll()) != null) {
+            writes[writeCount++] = message.buffer(format);
+            bytes += message.length();
+            writeMessages += message.count();
+        }
+        return writeCount > 0;
+    }
+
+    /**
+     * Handles one complete line in the same way as the read loop in ServerCommunicationLogic
+     */
+    private void lineReceived() {
+        String userInput = new String(currentLine.toByteArray(), Charset.defaultCharset());
+        metrics.messageIn(currentLine.size() + 1);
+        readPause = Math.max(readPause, rateLimiter.charge(currentLine.size() + 1));
+        currentLine.reset();
+        if (userInput.endsWith("\r")) {
+            userInput = userInput.substring(0, userInput.length() - 1);
+        }
+        server.messageReceived(this, userInput);
+    }
+
+    /**
+     * Records the protocol the client speaks and adds the connection to the server
+     * @param format how messages to this client are encoded
+     */
+    private void started(EncodedMessage.Format format) {
+        this.format = format;
+        if (format != EncodedMessage.Format.LINE) {
+            outboundQueue.addStream(List.of(EncodedMessage.welcome(server.nextClientId(), flags)).iterator());
+        }
+        server.addConnection(this, (flags & ChatProtocol.FLAG_RESUME) != 0);
+        idleMonitor.start(format != EncodedMessage.Format.LINE ? () -> send(EncodedMessage.ping()) : null,
+                () -> eventLoop.execute(this::close));
+        handleWrite();
+    }
+
+    /**
+     * Looks for MAGIC followed by a HELLO frame at the start of the inbound buffer
+     * @throws IOException if the client sent something other than the frame protocol's handshake
+     */
+    private void readHello() throws IOException {
+        inbound.flip();
+        int magicLength = ChatProtocol.MAGIC.length;
+        for (int i = 0; i < Math.min(magicLength, inbound.limit()); i++) {
+            if (inbound.get(i) != ChatProtocol.MAGIC[i]) {
+                throw new IOException("Unknown protocol");
+            }
+        }
+        if (inbound.limit() > magicLength) {
+            inbound.position(magicLength);
+            ChatProtocol.Frame hello = ChatProtocol.readFrame(inbound);
+            if (hello != null) {
+                ChatProtocol.checkHello(hello);
+                userName = hello.text(2);
+                flags = server.negotiateFlags(hello.getByte(1));
+                inbound.compact();
+                started(EncodedMessage.Format.framed(flags));
+                readFrames();
+                return;
+            }
+        }
+        inbound.position(0);
+        inbound.compact();
+    }
+
+    /**
+     * Hands every frame that has fully arrived to the server
+     * @throws IOException if a frame is not valid
+     */
+    private void readFrames() throws IOException {
+        inbound.flip();
+        ChatProtocol.Frame frame;
+        while ((frame = ChatProtocol.readFrame(inbound)) != null) {
+            metrics.messageIn(frame.length());
+            server.frameReceived(this, userName, frame);
+            readPause = Math.max(readPause, rateLimiter.charge(frame.length()));
+        }
+        inbound.compact();
+    }
+
+    /**
+     * Copies received bytes to the inbound buffer, growing it when a large frame does not fit
+     * @param bytes the bytes just read from the channel
+     */
+    private void appendInbound(ByteBuffer bytes) {
+        if (inbound.remaining() < bytes.remaining()) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(inbound.capacity() * 2,
+                    inbound.position() + bytes.remaining()));
+            inbound.flip();
+            larger.put(inbound);
+            inbound = larger;
+        }
+        inbound.put(bytes);
+    }
+}
@@ -0,0 +1,167 @@
+/**
+ * A selector thread that handles reading and writing for every NioConnection registered with it, so that the number
+ * of server threads no longer grows with the number of users.
+ * One thread serves many clients, so a task or connection that throws is logged and, for a connection, closed, and
+ * the loop carries on with everyone else.
+ */
+
+import java.io.IOException;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public final class NioEventLoop implements Runnable {
+
+    private Selector selector;
+    private Thread thread;
+    private ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    //Only used on the event loop thread
+    private PriorityQueue<ScheduledTask> scheduled = new PriorityQueue<>();
+
+    /**
+     * Opens the selector and starts the event loop thread
+     * @param name the name given to the event loop thread
+     * @throws IOException if the selector cannot be opened
+     */
+    public NioEventLoop(String name) throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    /**
+     * Hands a newly accepted connection over to this event loop, which will start reading from it
+     * @param connection the connection to be registered
+     */
+    public void register(NioConnection connection) {
+        execute(() -> {
+            try {
+                SelectionKey key = connection.getChannel().register(selector, SelectionKey.OP_READ, connection);
+                connection.setKey(key);
+                connection.registered();
+            }
+            catch (IOException e) {
+                connection.close();
+            }
+        });
+    }
+
+    /**
+     * Runs a task on the event loop thread. Used by other threads that need to touch a connection's selection key.
+     * @param task the task to run
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (!inEventLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Runs a task on the event loop thread after a delay
+     * @param task the task to run
+     * @param delayMillis how long to wait before running it
+     */
+    public void schedule(Runnable task, long delayMillis) {
+        long due = System.nanoTime() + delayMillis * 1000000;
+        execute(() -> scheduled.add(new ScheduledTask(due, task)));
+    }
+
+    /**
+     * @return true if the calling thread is this event loop's thread
+     */
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Waits for channels to become readable or writable and passes them to their connection
+     */
+    @Override
+    public void run() {
+        while (selector.isOpen()) {
+            try {
+                ScheduledTask next = scheduled.peek();
+                if (!tasks.isEmpty()) {
+                    //Tasks added by this thread while handling the last keys, such as flushes, run without waiting
+                    selector.selectNow();
+                }
+                else if (next == null) {
+                    selector.select();
+                }
+                else {
+                    long wait = (next.due - System.nanoTime()) / 1000000;
+                    if (wait > 0) {
+                        selector.select(wait);
+                    }
+                    else {
+                        selector.selectNow();
+                    }
+                }
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                runSafely(task);
+            }
+            long now = System.nanoTime();
+            while (!scheduled.isEmpty() && scheduled.peek().due - now <= 0) {
+                runSafely(scheduled.poll().task);
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                NioConnection connection = (NioConnection) key.attachment();
+                try {
+                    if (key.isValid() && key.isReadable()) {
+                        connection.handleRead();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.handleWrite();
+                    }
+                }
+                catch (RuntimeException e) {
+                    System.out.println("Closing a connection after an error on " + thread.getName() + ": " + e);
+                    runSafely(connection::close);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs a task, logging anything it throws rather than letting it end the loop
+     * @param task the task
+     */
+    private void runSafely(Runnable task) {
+        try {
+            task.run();
+        }
+        catch (RuntimeException e) {
+            System.out.println("A task failed on " + thread.getName() + ": " + e);
+            e.printStackTrace();
+        }
+    }
+
+    private static class ScheduledTask implements Comparable<ScheduledTask> {
+
+        private final long due;
+        private final Runnable task;
+
+        private ScheduledTask(long due, Runnable task) {
+            this.due = due;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(ScheduledTask other) {
+            return Long.compare(due, other.due);
+        }
+    }
+}
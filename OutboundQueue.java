@@ -0,0 +1,271 @@
+/**
+ * A bounded queue of messages waiting to be written to one client. The broadcasting thread only ever adds to the
+ * queue, so a client that reads slowly can no longer hold up delivery to everyone else. What happens when the queue
+ * is full is decided by the slow consumer policy.
+ * History is added as a stream of batches, which are only read from the dataStore as the writer is ready for them,
+ * so it is never dropped and does not take up room in the queue.
+ */
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class OutboundQueue {
+
+    /**
+     * DROP_OLDEST discards the oldest waiting message to make room, DISCONNECT closes the connection and COALESCE
+     * joins the new message onto the last waiting one (dropping the oldest once that grows past MAX_COALESCED_LENGTH)
+     */
+    public enum SlowConsumerPolicy { DROP_OLDEST, DISCONNECT, COALESCE }
+
+    //In bytes
+    private static final int MAX_COALESCED_LENGTH = 64 * 1024;
+    //The most that writers gather into one write, in bytes
+    public static final int MAX_WRITE_LENGTH = 64 * 1024;
+
+    private ArrayDeque<EncodedMessage> messages = new ArrayDeque<>();
+    private ArrayDeque<Iterator<EncodedMessage>> streams = new ArrayDeque<>();
+    private int capacity;
+    private SlowConsumerPolicy policy;
+    private boolean closed;
+    //Set when the server shuts down: what is already waiting is still sent, but nothing new is added
+    private boolean finishing;
+    private AtomicLong dropped = new AtomicLong();
+    //Not synchronized, so that a virtual thread waiting in take() does not pin its carrier
+    private ReentrantLock lock = new ReentrantLock();
+    private Condition notEmpty = lock.newCondition();
+
+    /**
+     * @param capacity the most messages that can wait at once
+     * @param policy what to do when the queue is full
+     */
+    public OutboundQueue(int capacity, SlowConsumerPolicy policy) {
+        this.capacity = Math.max(1, capacity);
+        this.policy = policy;
+    }
+
+    /**
+     * Adds a message without ever blocking the caller
+     * @param message the message to be sent
+     * @return false if the client is too slow and should be disconnected, true otherwise
+     */
+    public boolean offer(EncodedMessage message) {
+        lock.lock();
+        try {
+            if (closed || finishing) {
+                return true;
+            }
+            if (messages.size() >= capacity) {
+                if (policy == SlowConsumerPolicy.DISCONNECT) {
+                    dropped.addAndGet(messages.size() + 1);
+                    messages.clear();
+                    closed = true;
+                    notEmpty.signalAll();
+                    return false;
+                }
+                else if (policy == SlowConsumerPolicy.COALESCE
+                        && messages.peekLast().length() + message.length() < MAX_COALESCED_LENGTH) {
+                    messages.addLast(EncodedMessage.concat(messages.pollLast(), message));
+                    return true;
+                }
+                messages.pollFirst();
+                dropped.incrementAndGet();
+            }
+            messages.addLast(message);
+            notEmpty.signal();
+            return true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds a stream of history batches, which are sent before any waiting messages
+     * @param batches the batches, read one at a time by the writer. A batch may be null if it had nothing in it.
+     */
+    public void addStream(Iterator<EncodedMessage> batches) {
+        lock.lock();
+        try {
+            if (!closed && !finishing) {
+                streams.addLast(batches);
+                notEmpty.signal();
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for the next message. Used by writer threads.
+     * @return the next message, or null once the queue has been closed or finished
+     * @throws InterruptedException if the writer thread is interrupted while waiting
+     */
+    public EncodedMessage take() throws InterruptedException {
+        return next(-1);
+    }
+
+    /**
+     * @return the next message, or null if there is none waiting. Used by event loops, which must not block.
+     */
+    public EncodedMessage poll() {
+        try {
+            return next(0);
+        }
+        catch (InterruptedException e) {
+            //Not possible without waiting
+            return null;
+        }
+    }
+
+    /**
+     * Waits for the next message and then takes every other message already waiting, up to maxBytes, so that they
+     * can all be written to the client at once. Used by writer threads.
+     * @param into the list to add the messages to
+     * @param maxBytes stop taking messages once they add up to this length
+     * @param windowNanos how long to keep waiting for more messages after the first one arrives, or 0 to only take
+     *                    the messages that are already waiting
+     * @return false once the queue has been closed
+     * @throws InterruptedException if the writer thread is interrupted while waiting
+     */
+    public boolean drainTo(List<EncodedMessage> into, int maxBytes, long windowNanos) throws InterruptedException {
+        EncodedMessage message = take();
+        if (message == null) {
+            return false;
+        }
+        long deadline = System.nanoTime() + windowNanos;
+        int bytes = 0;
+        do {
+            into.add(message);
+            bytes += message.length();
+        }
+        while (bytes < maxBytes && (message = next(Math.max(0, deadline - System.nanoTime()))) != null);
+        return true;
+    }
+
+    /**
+     * @param waitNanos how long to wait for a message, 0 to not wait at all or a negative number to wait until one
+     *                  arrives or the queue is closed
+     * @return the next message, or null if none arrived in time
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    private EncodedMessage next(long waitNanos) throws InterruptedException {
+        long deadline = System.nanoTime() + waitNanos;
+        while (true) {
+            Iterator<EncodedMessage> stream;
+            lock.lock();
+            try {
+                while (waitNanos != 0 && messages.isEmpty() && streams.isEmpty() && !closed && !finishing) {
+                    if (waitNanos < 0) {
+                        notEmpty.await();
+                    }
+                    else {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            return null;
+                        }
+                        notEmpty.awaitNanos(remaining);
+                    }
+                }
+                stream = streams.peekFirst();
+                if (stream == null) {
+                    return messages.pollFirst();
+                }
+            }
+            finally {
+                lock.unlock();
+            }
+            EncodedMessage batch = nextBatch(stream);
+            if (batch != null) {
+                return batch;
+            }
+        }
+    }
+
+    /**
+     * Reads the next batch from a stream outside the lock, so broadcasts are never held up by reading history.
+     * Only the connection's writer calls this, so the stream is never read by two threads at once.
+     * @return the next batch, or null if the stream has finished or the batch was empty
+     */
+    private EncodedMessage nextBatch(Iterator<EncodedMessage> stream) {
+        EncodedMessage batch = stream.hasNext() ? stream.next() : null;
+        if (!stream.hasNext()) {
+            lock.lock();
+            try {
+                streams.remove(stream);
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Stops accepting messages but lets the writer take the ones already waiting, after which take() returns null as
+     * if the queue had been closed. Used to send everything queued before the server shuts down.
+     */
+    public void finish() {
+        lock.lock();
+        try {
+            finishing = true;
+            notEmpty.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true once finish has been called and every waiting message has been taken
+     */
+    public boolean isFinished() {
+        lock.lock();
+        try {
+            return finishing && messages.isEmpty() && streams.isEmpty();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops accepting messages and wakes up any writer waiting in take()
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            messages.clear();
+            streams.clear();
+            notEmpty.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of messages currently waiting
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return messages.size();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of messages this client never received because it was too slow
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+}
@@ -0,0 +1,77 @@
+/**
+ * Limits how fast one connection can send messages, both in messages per second and in bytes per second. Each limit
+ * is a token bucket that holds one second's worth of tokens, so a short burst is let through at once and a sustained
+ * flood is slowed down to the limit.
+ * Messages are charged after they have been read, and the connection then stops reading from its socket until it is
+ * back within its limits. Nothing is dropped: the client's own socket buffer fills up and its writes block, which
+ * slows the sender down without touching anyone else's messages.
+ * Only the connection's reader uses its limiter, so it needs no locking.
+ */
+
+public class RateLimiter {
+
+    private TokenBucket messages;
+    private TokenBucket bytes;
+
+    /**
+     * @param messagesPerSecond the most messages per second, or 0 for no limit
+     * @param bytesPerSecond the most bytes per second, or 0 for no limit
+     */
+    public RateLimiter(int messagesPerSecond, long bytesPerSecond) {
+        if (messagesPerSecond > 0) {
+            messages = new TokenBucket(messagesPerSecond);
+        }
+        if (bytesPerSecond > 0) {
+            bytes = new TokenBucket(bytesPerSecond);
+        }
+    }
+
+    /**
+     * Takes the tokens for a message that has just been read. The buckets may go into debt, which is paid off by
+     * waiting.
+     * @param length the length of the message in bytes
+     * @return how many nanoseconds the connection should stop reading for, or 0 if it is within its limits
+     */
+    public long charge(int length) {
+        long now = System.nanoTime();
+        long wait = 0;
+        if (messages != null) {
+            wait = messages.take(1, now);
+        }
+        if (bytes != null) {
+            wait = Math.max(wait, bytes.take(length, now));
+        }
+        return wait;
+    }
+
+    /**
+     * A token bucket kept as the time by which every token taken so far will have been replaced, so it only needs
+     * updating when tokens are taken (the generic cell rate algorithm). The bucket is in debt while that time is more
+     * than its capacity ahead of now.
+     */
+    private static class TokenBucket {
+
+        private static final long CAPACITY_NANOS = 1000000000L;
+
+        private double nanosPerToken;
+        private long replacedBy = System.nanoTime();
+
+        private TokenBucket(long tokensPerSecond) {
+            nanosPerToken = 1e9 / tokensPerSecond;
+        }
+
+        /**
+         * @param tokens the number of tokens to take
+         * @param now the current System.nanoTime()
+         * @return how long until the bucket is out of debt, or 0 if it is not in debt
+         */
+        private long take(long tokens, long now) {
+            if (replacedBy - now < 0) {
+                //A full bucket does not save up any more tokens
+                replacedBy = now;
+            }
+            replacedBy += (long) (tokens * nanosPerToken);
+            return Math.max(0, replacedBy - now - CAPACITY_NANOS);
+        }
+    }
+}
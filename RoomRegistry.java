@@ -0,0 +1,175 @@
+/**
+ * Keeps track of which connections are in which rooms, so that a message is only sent to the members of the room it
+ * was sent to rather than to every connection. Each room's members are held in their own ConnectionSet, and each
+ * connection remembers the rooms it has joined so they can all be left when it disconnects.
+ * Every connection is put in DEFAULT_ROOM when it joins the chat. Messages a user types go to the room they joined
+ * most recently.
+ */
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+public class RoomRegistry {
+
+    public static final String DEFAULT_ROOM = "general";
+    //Room names are also used as journal directory names
+    private static final Pattern ROOM_NAME = Pattern.compile("[a-z0-9_-]{1,32}");
+
+    private ConcurrentHashMap<String, ConnectionSet> members = new ConcurrentHashMap<>();
+    private ConcurrentHashMap<ClientConnection, Membership> memberships = new ConcurrentHashMap<>();
+
+    /**
+     * @param name a room name typed by a user, with or without a leading '#'
+     * @return the name in lower case, or null if it is not a valid room name
+     */
+    public static String normalise(String name) {
+        String room = name.trim().toLowerCase();
+        if (room.startsWith("#")) {
+            room = room.substring(1);
+        }
+        return ROOM_NAME.matcher(room).matches() ? room : null;
+    }
+
+    /**
+     * @param room the room a message was sent to
+     * @param message the message, in the form "name: text"
+     * @return the message as shown to users, marked with its room unless it was sent to the default room
+     */
+    public static String label(String room, String message) {
+        return room.equals(DEFAULT_ROOM) ? message : "#" + room + " " + message;
+    }
+
+    /**
+     * Adds a connection to a room's members and makes it the room the connection's messages are sent to
+     * @param connection the connection
+     * @param room a room name returned by normalise
+     * @return false if the connection was already in the room
+     */
+    public boolean join(ClientConnection connection, String room) {
+        Membership membership = memberships.computeIfAbsent(connection, c -> new Membership());
+        membership.lock.lock();
+        try {
+            boolean added = !membership.rooms.remove(room);
+            membership.rooms.add(room);
+            if (added) {
+                members.compute(room, (name, set) -> {
+                    ConnectionSet roomMembers = set == null ? new ConnectionSet() : set;
+                    roomMembers.add(connection);
+                    return roomMembers;
+                });
+            }
+            return added;
+        }
+        finally {
+            membership.lock.unlock();
+        }
+    }
+
+    /**
+     * Removes a connection from a room's members. A room is forgotten once its last member leaves, although its
+     * history is kept.
+     * @param connection the connection
+     * @param room a room name returned by normalise
+     * @return false if the connection was not in the room
+     */
+    public boolean leave(ClientConnection connection, String room) {
+        Membership membership = memberships.get(connection);
+        if (membership == null) {
+            return false;
+        }
+        membership.lock.lock();
+        try {
+            if (!membership.rooms.remove(room)) {
+                return false;
+            }
+            removeMember(room, connection);
+            return true;
+        }
+        finally {
+            membership.lock.unlock();
+        }
+    }
+
+    /**
+     * Removes a connection from every room it is in. Used when it disconnects.
+     * @param connection the connection
+     */
+    public void leaveAll(ClientConnection connection) {
+        Membership membership = memberships.remove(connection);
+        if (membership == null) {
+            return;
+        }
+        membership.lock.lock();
+        try {
+            for (String room : membership.rooms) {
+                removeMember(room, connection);
+            }
+            membership.rooms.clear();
+        }
+        finally {
+            membership.lock.unlock();
+        }
+    }
+
+    /**
+     * @param connection the connection
+     * @return the room the connection joined most recently and is still in, or null if it is in no rooms
+     */
+    public String currentRoom(ClientConnection connection) {
+        Membership membership = memberships.get(connection);
+        if (membership == null) {
+            return null;
+        }
+        membership.lock.lock();
+        try {
+            return membership.rooms.isEmpty() ? null : membership.rooms.get(membership.rooms.size() - 1);
+        }
+        finally {
+            membership.lock.unlock();
+        }
+    }
+
+    /**
+     * Calls the action for each member of a room. The room's members are found with one lookup, however many
+     * other rooms there are.
+     * @param room the room
+     * @param action the action, called once for each member
+     */
+    public void forEachMember(String room, Consumer<ClientConnection> action) {
+        ConnectionSet roomMembers = members.get(room);
+        if (roomMembers != null) {
+            roomMembers.forEach(action);
+        }
+    }
+
+    /**
+     * @return each room with members and the number of members it has, in order of name
+     */
+    public Map<String, Integer> memberCounts() {
+        TreeMap<String, Integer> counts = new TreeMap<>();
+        members.forEach((room, set) -> counts.put(room, set.size()));
+        return counts;
+    }
+
+    private void removeMember(String room, ClientConnection connection) {
+        members.computeIfPresent(room, (name, set) -> {
+            set.remove(connection);
+            return set.size() == 0 ? null : set;
+        });
+    }
+
+    /**
+     * The rooms one connection is in, most recently joined last. Not synchronized, so that a virtual thread changing
+     * its rooms does not pin its carrier.
+     */
+    private static class Membership {
+
+        private final ArrayList<String> rooms = new ArrayList<>();
+        private final ReentrantLock lock = new ReentrantLock();
+    }
+}
@@ -4,40 +4,117 @@
 
 import java.net.*;
 import java.io.*;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
 
-public class ServerCommunicationLogic {
+public class ServerCommunicationLogic implements ClientConnection {
 
-    private PrintWriter clientOut;
+    private OutputStream clientOut;
     private String userInput;
     private InputStreamReader reader;
     private BufferedReader clientIn;
+    private Socket socket;
+    private OutboundQueue outboundQueue;
+    private volatile EncodedMessage.Format format;
+    private String userName;
+    //The HELLO flags agreed with a framed client
+    private byte flags;
+    private ChatServer server;
+    private RateLimiter rateLimiter;
+    private IdleMonitor idleMonitor;
+    private ServerMetrics metrics;
 
     /**
-     * Adds a new user to the dataStore and defines and starts an input and output thread
+     * Adds a new user to the dataStore and starts an input thread. Once the input thread has found which protocol
+     * the client speaks, it starts an output thread which writes the messages waiting in the outbound queue to the
+     * client.
      * @param socket the socket set up in ChatServer
      * @param server an object of ChatServer
      * @param dataStore an object of DataStore
+     * @param threadFactory creates the input and output threads, either platform or virtual threads
+     * @param outboundQueue holds the messages waiting to be written to this client
+     * @param flushMillis how long the output thread waits for more messages before writing, 0 to write as soon as
+     *                    it can
+     * @param rateLimiter limits how fast the client can send messages
+     * @param idleMonitor pings the client when it goes quiet and disconnects it if it has gone
      */
-    public ServerCommunicationLogic (Socket socket, ChatServer server, DataStore dataStore){
+    public ServerCommunicationLogic (Socket socket, ChatServer server, DataStore dataStore,
+                                     ThreadFactory threadFactory, OutboundQueue outboundQueue, int flushMillis,
+                                     RateLimiter rateLimiter, IdleMonitor idleMonitor){
 
+        this.socket = socket;
+        this.outboundQueue = outboundQueue;
+        this.server = server;
+        this.rateLimiter = rateLimiter;
+        this.idleMonitor = idleMonitor;
+        this.metrics = server.getMetrics();
+        long flushNanos = flushMillis * 1000000L;
         dataStore.addUser(this);
 
-        //Defining a server-client thread
-        Thread outThread = new Thread(() -> {
+        try {
+            clientOut = socket.getOutputStream();
+            //Lets the operating system find dead peers when the idle checks are turned off
+            socket.setKeepAlive(true);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
 
+        //Defining a server-client thread. Every message waiting when it wakes up is written with a single flush, so
+        //a burst of messages costs one write to the socket rather than one each.
+        Thread outThread = threadFactory.newThread(() -> {
             try {
-                clientOut = new PrintWriter(socket.getOutputStream(), true);
+                OutputStream out = new BufferedOutputStream(clientOut, OutboundQueue.MAX_WRITE_LENGTH);
+                List<EncodedMessage> pending = new ArrayList<>();
+                while (outboundQueue.drainTo(pending, OutboundQueue.MAX_WRITE_LENGTH, flushNanos)) {
+                    int messages = 0;
+                    long bytes = 0;
+                    for (EncodedMessage message : pending) {
+                        bytes += message.writeTo(out, format);
+                        messages += message.count();
+                    }
+                    out.flush();
+                    metrics.written(messages, bytes);
+                    pending.clear();
+                }
+                //The queue has been closed, or finished and everything in it written
+                close();
             }
             catch (IOException e) {
-                e.printStackTrace();
+                close();
+            }
+            catch (InterruptedException e) {
             }
-
         });
 
         //Defining a client-server thread
-        Thread inThread = new Thread(() -> {
+        Thread inThread = threadFactory.newThread(() -> {
                 try {
-                    reader = new InputStreamReader(socket.getInputStream());
+                    BufferedInputStream in = new BufferedInputStream(socket.getInputStream());
+                    format = detectFormat(in);
+                    if (format != EncodedMessage.Format.LINE) {
+                        stream(List.of(EncodedMessage.welcome(server.nextClientId(), flags)).iterator());
+                    }
+                    outThread.start();
+                    server.addConnection(this, (flags & ChatProtocol.FLAG_RESUME) != 0);
+                    idleMonitor.start(format != EncodedMessage.Format.LINE ? () -> send(EncodedMessage.ping()) : null,
+                            this::close);
+
+                    if (format != EncodedMessage.Format.LINE) {
+                        DataInputStream frameIn = new DataInputStream(in);
+                        while (true) {
+                            ChatProtocol.Frame frame = ChatProtocol.readFrame(frameIn);
+                            idleMonitor.activity();
+                            metrics.messageIn(frame.length());
+                            server.frameReceived(this, userName, frame);
+                            throttle(frame.length());
+                        }
+                    }
+
+                    reader = new InputStreamReader(in);
                     clientIn = new BufferedReader(reader);
                     while (socket.getInputStream()!= null && socket.isConnected()) {
                         userInput = clientIn.readLine();
@@ -45,30 +122,130 @@ public class ServerCommunicationLogic {
                             throw new IOException();
                         }
                         else {
-                            synchronized (this) {
-                                System.out.println(userInput);
-                                dataStore.addMessage(userInput);
-                                server.messageToAll();
-                            }
+                            idleMonitor.activity();
+                            metrics.messageIn(userInput.length() + 1);
+                            server.messageReceived(this, userInput);
+                            throttle(userInput.length() + 1);
                         }
 
                     }
                 }
-                catch (IOException e) {
+                catch (IOException | RuntimeException e) {
+                    //A client that breaks the protocol is dropped like one that disconnects. The output thread may not
+                    //have been started yet, so the socket is closed here too.
+                    idleMonitor.stop();
+                    outboundQueue.close();
+                    close();
                     server.removeConnection(this);
                 }
             });
 
-        outThread.start();
         inThread.start();
 
     }
 
     /**
-     * Called from ChatServer in a loop to send the same message to all clients.
-     * @param s the message to be sent to the client
+     * Charges a message to the rate limiter and, if the client is over its limits, stops reading from it until it is
+     * back within them. The socket is not read while waiting, so the client is slowed down rather than its messages
+     * dropped.
+     * @param length the length of the message just handled
+     * @throws InterruptedIOException if the reader thread is interrupted while waiting
+     */
+    private void throttle(int length) throws InterruptedIOException {
+        long wait = rateLimiter.charge(length);
+        if (wait > 0) {
+            server.throttleStarted(this);
+            try {
+                Thread.sleep(Duration.ofNanos(wait));
+            }
+            catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            finally {
+                server.throttleEnded(this);
+            }
+        }
+    }
+
+    /**
+     * Waits briefly for the first byte from the client. A client using frames sends MAGIC and a HELLO frame
+     * straight away, while a line client may send nothing until its user types a message.
+     * @param in the client's input stream, which is left just after the handshake for framed clients and unchanged
+     *           for line clients
+     * @return the protocol the client speaks, which for framed clients depends on whether compression was agreed
+     * @throws IOException if the client disconnects or sends an invalid handshake
+     */
+    private EncodedMessage.Format detectFormat(BufferedInputStream in) throws IOException {
+        socket.setSoTimeout(ChatProtocol.DETECT_TIMEOUT_MILLIS);
+        try {
+            in.mark(1);
+            int first = in.read();
+            if (first == -1) {
+                throw new IOException();
+            }
+            if (first != ChatProtocol.MAGIC[0]) {
+                in.reset();
+                return EncodedMessage.Format.LINE;
+            }
+        }
+        catch (SocketTimeoutException e) {
+            return EncodedMessage.Format.LINE;
+        }
+        finally {
+            socket.setSoTimeout(0);
+        }
+
+        DataInputStream handshakeIn = new DataInputStream(in);
+        ChatProtocol.readMagic(handshakeIn);
+        ChatProtocol.Frame hello = ChatProtocol.readFrame(handshakeIn);
+        ChatProtocol.checkHello(hello);
+        userName = hello.text(2);
+        flags = server.negotiateFlags(hello.getByte(1));
+        return EncodedMessage.Format.framed(flags);
+    }
+
+    /**
+     * Called from ChatServer in a loop to send the same message to all clients. The message is only queued here, so
+     * the caller never waits on this client's socket.
+     * @param message the message to be sent to the client
+     */
+    @Override
+    public void send(EncodedMessage message){
+        if (!outboundQueue.offer(message)) {
+            System.out.println("Disconnecting a client that is not keeping up with the chat.");
+            close();
+        }
+    }
+
+    @Override
+    public void stream(Iterator<EncodedMessage> batches) {
+        outboundQueue.addStream(batches);
+    }
+
+    @Override
+    public long getDroppedMessages() {
+        return outboundQueue.getDropped();
+    }
+
+    @Override
+    public int queuedMessages() {
+        return outboundQueue.size();
+    }
+
+    @Override
+    public void finish() {
+        outboundQueue.finish();
+    }
+
+    /**
+     * Closing the socket makes the input thread's readLine fail, which removes the connection from the server
      */
-    public synchronized void stringToClient(String s){
-        clientOut.println(s);
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        }
+        catch (IOException e) {
+        }
     }
 }
@@ -0,0 +1,395 @@
+/**
+ * Holds the settings the server is started with and reads them from the command line flags
+ */
+
+public class ServerConfig {
+
+    //A segment is mapped as one buffer, which cannot reach 2 GB
+    private static final int MAX_SEGMENT_MEGABYTES = 2047;
+
+    /**
+     * BLOCKING uses one platform reader thread per connection, VIRTUAL uses one virtual reader thread per connection
+     * and NIO shares a small number of selector threads between all connections
+     */
+    public enum Mode { BLOCKING, VIRTUAL, NIO }
+
+    private int port = 14001;
+    private Mode mode = Mode.BLOCKING;
+    private int eventLoops = 1;
+    private int queueCapacity = 1024;
+    private OutboundQueue.SlowConsumerPolicy slowConsumerPolicy = OutboundQueue.SlowConsumerPolicy.DROP_OLDEST;
+    private int historyMessages = 65536;
+    private int historyMegabytes = 64;
+    private int historyMinutes = 0;
+    private int joinHistory = 50;
+    private String journalDirectory;
+    private int segmentMegabytes = 64;
+    private int flushMillis = 0;
+    //0 when compression is off
+    private int compressThreshold = 0;
+    private int maxRooms = 64;
+    //0 for no limit
+    private int rateMessages = 0;
+    private int rateKilobytes = 0;
+    //0 to turn each check off
+    private int heartbeatSeconds = 30;
+    private int idleSeconds = 0;
+    //0 unless this node leads a cluster
+    private int clusterPort = 0;
+    //Set when this node follows a cluster leader
+    private String leaderHost;
+    private int leaderPort;
+    //Null when no user can close the server
+    private String adminToken;
+    //Shared by every node of a cluster, which cannot be formed without one
+    private String clusterSecret;
+    private int drainSeconds = 5;
+    //Metrics are always sampled for JMX, and only printed when asked for
+    private int metricsSeconds = 10;
+    private boolean printMetrics;
+
+    /**
+     * Looks at the command line arguments and sets the port, server mode, outbound queue, write batching,
+     * compression, room, rate limit, heartbeat, idle timeout, cluster, admin, shutdown, metrics, history retention
+     * and journal settings accordingly.
+     * Invalid values are reported and replaced with the defaults.
+     * @param args The arguments entered in the command line.
+     * @return the resulting configuration
+     */
+    public static ServerConfig fromArgs(String[] args) {
+
+        ServerConfig config = new ServerConfig();
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-csp")) {
+                try {
+                    config.port = Integer.parseInt(args[i + 1]);
+                    i++;
+                } catch (NumberFormatException e) {
+                    System.out.println("The port entered is invalid. Using 14001 as default.");
+                } catch (ArrayIndexOutOfBoundsException e) {
+                    System.out.println("No port found after flag. Default port 14001 is being used.");
+                }
+                if (config.port < 0 || config.port > 65535) {
+                    config.port = 14001;
+                    System.out.println("The port entered is invalid. Using 14001 as default.");
+                }
+            }
+            else if (args[i].equals("-nio")) {
+                config.mode = Mode.NIO;
+                //The number of event loops is optional
+                if (i + 1 < args.length && !args[i + 1].startsWith("-")) {
+                    try {
+                        config.eventLoops = Math.max(1, Integer.parseInt(args[i + 1]));
+                    } catch (NumberFormatException e) {
+                        System.out.println("Invalid number of event loops. Using 1 as default.");
+                    }
+                    i++;
+                }
+            }
+            else if (args[i].equals("-vt")) {
+                config.mode = Mode.VIRTUAL;
+            }
+            else if (args[i].equals("-queue")) {
+                config.queueCapacity = Math.max(1, readNumber(args, i++, config.queueCapacity));
+            }
+            else if (args[i].equals("-history")) {
+                config.historyMessages = Math.max(1, readNumber(args, i++, config.historyMessages,
+                        MessageLog.MAX_MESSAGES));
+            }
+            else if (args[i].equals("-historymb")) {
+                config.historyMegabytes = Math.max(1, readNumber(args, i++, config.historyMegabytes));
+            }
+            else if (args[i].equals("-historymin")) {
+                config.historyMinutes = Math.max(0, readNumber(args, i++, config.historyMinutes));
+            }
+            else if (args[i].equals("-joinhistory")) {
+                config.joinHistory = Math.max(0, readNumber(args, i++, config.joinHistory));
+            }
+            else if (args[i].equals("-journal")) {
+                if (i + 1 < args.length) {
+                    config.journalDirectory = args[++i];
+                }
+                else {
+                    System.out.println("No directory found after flag: \"-journal\". Messages will not be saved.");
+                }
+            }
+            else if (args[i].equals("-segmentmb")) {
+                config.segmentMegabytes = Math.max(1, readNumber(args, i++, config.segmentMegabytes,
+                        MAX_SEGMENT_MEGABYTES));
+            }
+            else if (args[i].equals("-flushms")) {
+                config.flushMillis = Math.max(0, readNumber(args, i++, config.flushMillis));
+            }
+            else if (args[i].equals("-compress")) {
+                config.compressThreshold = 512;
+                //The threshold is optional
+                if (i + 1 < args.length && !args[i + 1].startsWith("-")) {
+                    config.compressThreshold = Math.max(1, readNumber(args, i++, config.compressThreshold));
+                }
+            }
+            else if (args[i].equals("-maxrooms")) {
+                config.maxRooms = Math.max(1, readNumber(args, i++, config.maxRooms));
+            }
+            else if (args[i].equals("-ratemsgs")) {
+                config.rateMessages = Math.max(0, readNumber(args, i++, config.rateMessages));
+            }
+            else if (args[i].equals("-ratekb")) {
+                config.rateKilobytes = Math.max(0, readNumber(args, i++, config.rateKilobytes));
+            }
+            else if (args[i].equals("-heartbeat")) {
+                config.heartbeatSeconds = Math.max(0, readNumber(args, i++, config.heartbeatSeconds));
+            }
+            else if (args[i].equals("-idle")) {
+                config.idleSeconds = Math.max(0, readNumber(args, i++, config.idleSeconds));
+            }
+            else if (args[i].equals("-cluster")) {
+                config.clusterPort = readNumber(args, i++, 0);
+                if (config.clusterPort <= 0 || config.clusterPort > 65535) {
+                    config.clusterPort = 0;
+                    System.out.println("The cluster port entered is invalid. This server will not lead a cluster.");
+                }
+            }
+            else if (args[i].equals("-leader")) {
+                String address = i + 1 < args.length ? args[++i] : "";
+                int colon = address.lastIndexOf(':');
+                try {
+                    config.leaderPort = Integer.parseInt(address.substring(colon + 1));
+                    config.leaderHost = colon > 0 ? address.substring(0, colon) : "localhost";
+                } catch (NumberFormatException e) {
+                    System.out.println("The leader must be given as host:port. This server will run on its own.");
+                }
+            }
+            else if (args[i].equals("-clustersecret")) {
+                if (i + 1 < args.length) {
+                    config.clusterSecret = args[++i];
+                }
+                else {
+                    System.out.println("No secret found after flag: \"-clustersecret\". This server will not join a " +
+                            "cluster.");
+                }
+            }
+            else if (args[i].equals("-admin")) {
+                if (i + 1 < args.length) {
+                    config.adminToken = args[++i];
+                }
+                else {
+                    System.out.println("No token found after flag: \"-admin\". No user will be able to close the " +
+                            "server.");
+                }
+            }
+            else if (args[i].equals("-drain")) {
+                config.drainSeconds = Math.max(0, readNumber(args, i++, config.drainSeconds));
+            }
+            else if (args[i].equals("-metrics")) {
+                config.printMetrics = true;
+                //The period is optional
+                if (i + 1 < args.length && !args[i + 1].startsWith("-")) {
+                    config.metricsSeconds = Math.max(1, readNumber(args, i++, config.metricsSeconds));
+                }
+            }
+            else if (args[i].equals("-slow")) {
+                try {
+                    config.slowConsumerPolicy = OutboundQueue.SlowConsumerPolicy.valueOf(
+                            args[i + 1].toUpperCase().replace('-', '_'));
+                    i++;
+                } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+                    System.out.println("Invalid slow client policy. Use drop-oldest, disconnect or coalesce. " +
+                            "Using drop-oldest as default.");
+                }
+            }
+            else {
+                System.out.println("Invalid command line flag: " + args[i]);
+            }
+        }
+        return config;
+    }
+
+    /**
+     * Reads the number following a flag
+     * @param args The arguments entered in the command line.
+     * @param i the position of the flag
+     * @param defaultValue the value to use if the number is missing or invalid
+     * @return the number after the flag, or the default
+     */
+    private static int readNumber(String[] args, int i, int defaultValue) {
+        try {
+            return Integer.parseInt(args[i + 1]);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            System.out.println("Invalid value after flag: \"" + args[i] + "\". Using " + defaultValue + " as default.");
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @param args the command line arguments
+     * @param i the index of the flag
+     * @param defaultValue the value used if the flag has no valid number after it
+     * @param maxValue the largest value the server can use
+     * @return the number after the flag, or maxValue if it is larger
+     */
+    private static int readNumber(String[] args, int i, int defaultValue, int maxValue) {
+        int value = readNumber(args, i, defaultValue);
+        if (value > maxValue) {
+            System.out.println("The value after flag: \"" + args[i] + "\" is too large. Using " + maxValue +
+                    " instead.");
+            return maxValue;
+        }
+        return value;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int getEventLoops() {
+        return eventLoops;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public OutboundQueue.SlowConsumerPolicy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
+    public int getHistoryMessages() {
+        return historyMessages;
+    }
+
+    public long getHistoryBytes() {
+        return historyMegabytes * 1024L * 1024L;
+    }
+
+    public long getHistoryAgeMillis() {
+        return historyMinutes * 60000L;
+    }
+
+    /**
+     * @return the number of recent messages sent to each user when they join
+     */
+    public int getJoinHistory() {
+        return joinHistory;
+    }
+
+    /**
+     * @return the directory to keep the message journal in, or null if messages are not saved to disk
+     */
+    public String getJournalDirectory() {
+        return journalDirectory;
+    }
+
+    public int getSegmentBytes() {
+        return segmentMegabytes * 1024 * 1024;
+    }
+
+    /**
+     * @return how long connections wait for more messages before writing to the client, 0 to write as soon as the
+     * connection's writer is free
+     */
+    public int getFlushMillis() {
+        return flushMillis;
+    }
+
+    /**
+     * @return the smallest framed message, in bytes, that is compressed for clients that ask for compression, or 0 if
+     * compression is off
+     */
+    public int getCompressThreshold() {
+        return compressThreshold;
+    }
+
+    /**
+     * @return the most rooms, each with its own history, that users can make
+     */
+    public int getMaxRooms() {
+        return maxRooms;
+    }
+
+    /**
+     * @return the most messages per second each client can send, or 0 for no limit
+     */
+    public int getRateMessages() {
+        return rateMessages;
+    }
+
+    /**
+     * @return the most bytes per second each client can send, or 0 for no limit
+     */
+    public long getRateBytes() {
+        return rateKilobytes * 1024L;
+    }
+
+    /**
+     * @return how long a framed client may be silent before it is pinged, and then how long it has to answer, or 0
+     * to never ping
+     */
+    public long getHeartbeatMillis() {
+        return heartbeatSeconds * 1000L;
+    }
+
+    /**
+     * @return how long any client may send nothing before it is disconnected, or 0 for no limit
+     */
+    public long getIdleMillis() {
+        return idleSeconds * 1000L;
+    }
+
+    /**
+     * @return the port other nodes join this node's cluster on, or 0 if this node does not lead a cluster
+     */
+    public int getClusterPort() {
+        return clusterPort;
+    }
+
+    /**
+     * @return the host name of the cluster leader this node follows, or null if it does not follow one
+     */
+    public String getLeaderHost() {
+        return leaderHost;
+    }
+
+    public int getLeaderPort() {
+        return leaderPort;
+    }
+
+    /**
+     * @return the secret every node of the cluster is started with, or null if none was given
+     */
+    public String getClusterSecret() {
+        return clusterSecret;
+    }
+
+    /**
+     * @return the token a user must give with /admin before they can close the server, or null if no user can
+     */
+    public String getAdminToken() {
+        return adminToken;
+    }
+
+    /**
+     * @return how long the server waits on shutdown for the messages already queued to reach the clients
+     */
+    public long getDrainMillis() {
+        return drainSeconds * 1000L;
+    }
+
+    /**
+     * @return how often the metrics are sampled, and printed if that was asked for
+     */
+    public long getMetricsMillis() {
+        return metricsSeconds * 1000L;
+    }
+
+    /**
+     * @return whether the metrics are printed every time they are sampled
+     */
+    public boolean isPrintMetrics() {
+        return printMetrics;
+    }
+}
@@ -0,0 +1,272 @@
+/**
+ * Counts what the server does and publishes it over JMX and, if asked for, as a line printed every few seconds.
+ * Connections count the messages and bytes they read and write, and the server records how long each message took
+ * from being read to being queued for every member of its room. Counters are LongAdders, so the readers and writers
+ * of many connections can add to them at once without contending, and the latency is kept in a LatencyHistogram.
+ * Everything else, such as queue depths, is only looked at when the metrics are read.
+ * Every sampling period the totals are compared with the previous sample to give rates and latency percentiles for
+ * just that period.
+ */
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+public class ServerMetrics implements ServerMetricsMBean {
+
+    public static final String OBJECT_NAME = "ChatServer:type=ServerMetrics";
+
+    //Set by start, before anything asks for it
+    private ChatServer server;
+    private DataStore dataStore;
+    private ConnectionSet connections;
+    private LongAdder messagesIn = new LongAdder();
+    private LongAdder messagesOut = new LongAdder();
+    private LongAdder bytesIn = new LongAdder();
+    private LongAdder bytesOut = new LongAdder();
+    //Messages dropped for connections that have since closed. Open connections are asked when the metrics are read.
+    private LongAdder droppedByClosed = new LongAdder();
+    private LatencyHistogram broadcastLatency = new LatencyHistogram();
+
+    private TimerWheel timers;
+    private long periodNanos;
+    private boolean print;
+    //Only used on the wheel's thread
+    private long lastSampleAt;
+    private long lastMessagesIn;
+    private long lastMessagesOut;
+    private long lastBytesIn;
+    private long lastBytesOut;
+    private LatencyHistogram.Snapshot lastLatency;
+    //The results of the last sample, read by JMX
+    private volatile double messagesInPerSecond;
+    private volatile double messagesOutPerSecond;
+    private volatile double bytesInPerSecond;
+    private volatile double bytesOutPerSecond;
+    private volatile LatencyHistogram.Snapshot periodLatency;
+
+    /**
+     * Counting starts straight away, but nothing is published until start is called
+     * @param dataStore the dataStore, which counts every connection made
+     * @param connections the open connections, which are asked for their queues and dropped messages
+     */
+    public ServerMetrics(DataStore dataStore, ConnectionSet connections) {
+        this.dataStore = dataStore;
+        this.connections = connections;
+        lastLatency = broadcastLatency.snapshot();
+        periodLatency = lastLatency.minus(lastLatency);
+    }
+
+    /**
+     * Registers the metrics with JMX and starts sampling them
+     * @param server the server, which is asked for the number of connections and throttling
+     * @param timers the wheel the samples are taken on
+     * @param periodMillis how often a sample is taken
+     * @param print whether each sample is also printed
+     */
+    public void start(ChatServer server, TimerWheel timers, long periodMillis, boolean print) {
+        this.server = server;
+        this.timers = timers;
+        this.periodNanos = periodMillis * 1000000;
+        this.print = print;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        }
+        catch (JMException e) {
+            System.out.println("The metrics could not be registered with JMX: " + e.getMessage());
+        }
+        lastSampleAt = System.nanoTime();
+        timers.schedule(this::sample, periodNanos);
+    }
+
+    /**
+     * Called by a connection for every message it reads from its client
+     * @param bytes the length of the message as it was sent
+     */
+    public void messageIn(int bytes) {
+        messagesIn.increment();
+        bytesIn.add(bytes);
+    }
+
+    /**
+     * Called by a connection each time it writes to its client
+     * @param messages the number of messages written
+     * @param bytes the number of bytes written
+     */
+    public void written(int messages, long bytes) {
+        messagesOut.add(messages);
+        bytesOut.add(bytes);
+    }
+
+    /**
+     * Called once a message has been queued for every member of its room
+     * @param receivedAt the System.nanoTime at which the message was read
+     */
+    public void broadcast(long receivedAt) {
+        broadcastLatency.record(System.nanoTime() - receivedAt);
+    }
+
+    /**
+     * Keeps the count of messages dropped for a connection that is closing
+     * @param connection the connection
+     */
+    public void connectionRemoved(ClientConnection connection) {
+        droppedByClosed.add(connection.getDroppedMessages());
+    }
+
+    private void sample() {
+        long now = System.nanoTime();
+        double seconds = (now - lastSampleAt) / 1e9;
+        lastSampleAt = now;
+        long in = messagesIn.sum();
+        long out = messagesOut.sum();
+        long inBytes = bytesIn.sum();
+        long outBytes = bytesOut.sum();
+        messagesInPerSecond = (in - lastMessagesIn) / seconds;
+        messagesOutPerSecond = (out - lastMessagesOut) / seconds;
+        bytesInPerSecond = (inBytes - lastBytesIn) / seconds;
+        bytesOutPerSecond = (outBytes - lastBytesOut) / seconds;
+        lastMessagesIn = in;
+        lastMessagesOut = out;
+        lastBytesIn = inBytes;
+        lastBytesOut = outBytes;
+        LatencyHistogram.Snapshot latency = broadcastLatency.snapshot();
+        periodLatency = latency.minus(lastLatency);
+        lastLatency = latency;
+        if (print) {
+            System.out.println(summary());
+        }
+        timers.schedule(this::sample, periodNanos);
+    }
+
+    @Override
+    public String summary() {
+        LatencyHistogram.Snapshot latency = periodLatency;
+        return String.format("Metrics: %d connections, in %.0f msg/s %.1f KB/s, out %.0f msg/s %.1f KB/s, " +
+                        "queued %d (longest %d), dropped %d, throttled %d, broadcast latency p50 %d us p99 %d us " +
+                        "p99.9 %d us max %d us over %d messages",
+                getActiveConnections(), messagesInPerSecond, bytesInPerSecond / 1024, messagesOutPerSecond,
+                bytesOutPerSecond / 1024, getQueuedMessages(), getLongestQueue(), getDroppedMessages(),
+                getThrottledConnections(), latency.percentile(50) / 1000, latency.percentile(99) / 1000,
+                latency.percentile(99.9) / 1000, latency.max() / 1000, latency.count());
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return server.connectionCount();
+    }
+
+    @Override
+    public long getTotalConnections() {
+        return dataStore.totalConnections();
+    }
+
+    @Override
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    @Override
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public double getMessagesInPerSecond() {
+        return messagesInPerSecond;
+    }
+
+    @Override
+    public double getMessagesOutPerSecond() {
+        return messagesOutPerSecond;
+    }
+
+    @Override
+    public double getBytesInPerSecond() {
+        return bytesInPerSecond;
+    }
+
+    @Override
+    public double getBytesOutPerSecond() {
+        return bytesOutPerSecond;
+    }
+
+    @Override
+    public long getQueuedMessages() {
+        AtomicLong queued = new AtomicLong();
+        connections.forEach(connection -> queued.addAndGet(connection.queuedMessages()));
+        return queued.get();
+    }
+
+    @Override
+    public int getLongestQueue() {
+        AtomicInteger longest = new AtomicInteger();
+        connections.forEach(connection -> longest.accumulateAndGet(connection.queuedMessages(), Math::max));
+        return longest.get();
+    }
+
+    @Override
+    public long getDroppedMessages() {
+        AtomicLong dropped = new AtomicLong(droppedByClosed.sum());
+        connections.forEach(connection -> dropped.addAndGet(connection.getDroppedMessages()));
+        return dropped.get();
+    }
+
+    @Override
+    public int getThrottledConnections() {
+        return server.throttledConnections();
+    }
+
+    @Override
+    public long getThrottleCount() {
+        return server.throttleCount();
+    }
+
+    @Override
+    public long getCompressedMessages() {
+        return EncodedMessage.compressedMessages();
+    }
+
+    @Override
+    public long getCompressionBytesSaved() {
+        return EncodedMessage.compressionBytesSaved();
+    }
+
+    @Override
+    public long getBroadcasts() {
+        return periodLatency.count();
+    }
+
+    @Override
+    public long getBroadcastLatencyP50Micros() {
+        return periodLatency.percentile(50) / 1000;
+    }
+
+    @Override
+    public long getBroadcastLatencyP99Micros() {
+        return periodLatency.percentile(99) / 1000;
+    }
+
+    @Override
+    public long getBroadcastLatencyP999Micros() {
+        return periodLatency.percentile(99.9) / 1000;
+    }
+
+    @Override
+    public long getBroadcastLatencyMaxMicros() {
+        return periodLatency.max() / 1000;
+    }
+}
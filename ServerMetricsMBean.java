@@ -0,0 +1,71 @@
+/**
+ * The server's metrics as they are shown over JMX, for example in JConsole or VisualVM under "ChatServer". Totals
+ * are counted since the server started. Rates and latencies are for the last sampling period.
+ */
+
+public interface ServerMetricsMBean {
+
+    int getActiveConnections();
+
+    long getTotalConnections();
+
+    long getMessagesIn();
+
+    long getMessagesOut();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    double getMessagesInPerSecond();
+
+    double getMessagesOutPerSecond();
+
+    double getBytesInPerSecond();
+
+    double getBytesOutPerSecond();
+
+    /**
+     * @return the number of messages waiting in every connection's outbound queue
+     */
+    long getQueuedMessages();
+
+    /**
+     * @return the number of messages waiting for the slowest connection
+     */
+    int getLongestQueue();
+
+    /**
+     * @return the number of messages clients never received because they could not keep up
+     */
+    long getDroppedMessages();
+
+    int getThrottledConnections();
+
+    long getThrottleCount();
+
+    long getCompressedMessages();
+
+    long getCompressionBytesSaved();
+
+    /**
+     * @return the number of messages broadcast in the last sampling period
+     */
+    long getBroadcasts();
+
+    /**
+     * @return the median time from a message being read to it being queued for every member of its room
+     */
+    long getBroadcastLatencyP50Micros();
+
+    long getBroadcastLatencyP99Micros();
+
+    long getBroadcastLatencyP999Micros();
+
+    long getBroadcastLatencyMaxMicros();
+
+    /**
+     * @return the metrics as one line of text, as printed by the periodic dump
+     */
+    String summary();
+}
@@ -0,0 +1,148 @@
+/**
+ * A hashed timer wheel: a ring of buckets, each holding the timeouts due in one tick, turned by a single thread.
+ * Scheduling and cancelling a timeout are O(1) and each tick only looks at one bucket, so every connection can have
+ * its own deadline without a scheduled task or a thread of its own, and 100k deadlines cost no more per tick than the
+ * few that fall due.
+ * Timeouts further away than one turn of the wheel wait in their bucket for the number of turns left. Timeouts are
+ * added through a queue, so only the wheel's thread touches the buckets. Tasks run on that thread and must be quick.
+ */
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+public class TimerWheel {
+
+    private long tickNanos;
+    private int mask;
+    private ArrayList<ArrayList<Timeout>> buckets = new ArrayList<>();
+    private ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private long startTime = System.nanoTime();
+    //Only used on the wheel's thread
+    private long tick;
+    private Thread thread;
+    private volatile boolean stopped;
+
+    /**
+     * Creates the wheel and starts its thread
+     * @param tickMillis how often the wheel turns, which is also how late a timeout may run
+     * @param wheelSize the number of buckets, rounded up to a power of two
+     * @param name the name of the wheel's thread
+     */
+    public TimerWheel(long tickMillis, int wheelSize, String name) {
+        tickNanos = Math.max(1, tickMillis) * 1000000;
+        int size = Integer.highestOneBit(Math.max(2, wheelSize) - 1) << 1;
+        mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            buckets.add(new ArrayList<>());
+        }
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Runs a task on the wheel's thread once the delay has passed. Safe to call from any thread.
+     * @param task the task to run
+     * @param delayNanos how long to wait
+     * @return the timeout, which can be cancelled
+     */
+    public Timeout schedule(Runnable task, long delayNanos) {
+        Timeout timeout = new Timeout(task, System.nanoTime() + Math.max(0, delayNanos));
+        added.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Stops the wheel's thread. Timeouts that have not yet run never will.
+     */
+    public void stop() {
+        stopped = true;
+        LockSupport.unpark(thread);
+    }
+
+    private void run() {
+        while (!stopped) {
+            long tickEnd = startTime + (tick + 1) * tickNanos;
+            long sleep = tickEnd - System.nanoTime();
+            if (sleep > 0) {
+                LockSupport.parkNanos(sleep);
+                continue;
+            }
+            placeAdded();
+            expire(buckets.get((int) (tick & mask)), tickEnd);
+            tick++;
+        }
+    }
+
+    /**
+     * Moves newly scheduled timeouts into the bucket for the tick they fall due in
+     */
+    private void placeAdded() {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            //A timeout already due runs in the current tick
+            long dueTick = Math.max(tick, (timeout.deadline - startTime) / tickNanos);
+            timeout.turns = (dueTick - tick) / buckets.size();
+            buckets.get((int) (dueTick & mask)).add(timeout);
+        }
+    }
+
+    /**
+     * Runs the timeouts in a bucket that are due in this turn of the wheel, and removes cancelled ones
+     * @param bucket the bucket for the current tick
+     * @param tickEnd the time at the end of the current tick
+     */
+    private void expire(ArrayList<Timeout> bucket, long tickEnd) {
+        //Removing by swapping with the last element keeps removal O(1), as the order within a bucket does not matter
+        for (int i = 0; i < bucket.size(); ) {
+            Timeout timeout = bucket.get(i);
+            boolean due = !timeout.cancelled && timeout.turns == 0 && timeout.deadline - tickEnd <= 0;
+            if (timeout.cancelled || due) {
+                bucket.set(i, bucket.get(bucket.size() - 1));
+                bucket.remove(bucket.size() - 1);
+                if (due) {
+                    try {
+                        timeout.task.run();
+                    }
+                    catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+            else {
+                if (timeout.turns > 0) {
+                    timeout.turns--;
+                }
+                i++;
+            }
+        }
+    }
+
+    /**
+     * A task waiting in the wheel
+     */
+    public static class Timeout {
+
+        private final Runnable task;
+        private final long deadline;
+        //Only used on the wheel's thread
+        private long turns;
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Stops the task from running. The timeout is removed from its bucket the next time the wheel reaches it.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+}
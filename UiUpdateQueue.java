@@ -0,0 +1,151 @@
+/**
+ * Collects updates for the JavaFX window from any thread and applies them once per rendering pulse. Posting an update
+ * adds it to a lock-free queue and nothing else, so a burst of messages from the server does not put a task on the
+ * JavaFX thread's queue for each one. An AnimationTimer, which JavaFX runs once before drawing each frame, takes
+ * everything waiting and hands it to the window in one batch, so the window changes once per frame however many
+ * messages arrived. At most MAX_PER_PULSE updates are applied in one pulse, and the rest in the pulses after, so one
+ * huge burst cannot hold up drawing.
+ * The number of updates waiting and how long each batch took to apply are published over JMX.
+ */
+
+import javafx.animation.AnimationTimer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+public class UiUpdateQueue<T> implements UiUpdateQueueMBean {
+
+    public static final String OBJECT_NAME = "ChatClient:type=UiUpdates";
+    private static final int MAX_PER_PULSE = 5000;
+
+    private ConcurrentLinkedQueue<T> pending = new ConcurrentLinkedQueue<>();
+    //Kept alongside the queue, as counting a ConcurrentLinkedQueue walks the whole of it
+    private AtomicInteger backlog = new AtomicInteger();
+    private AtomicInteger maxBacklog = new AtomicInteger();
+    private AtomicLong updates = new AtomicLong();
+    private AtomicLong drains = new AtomicLong();
+    private LatencyHistogram drainTimes = new LatencyHistogram();
+    private Consumer<List<T>> apply;
+    private AnimationTimer timer;
+
+    /**
+     * @param apply called on the JavaFX thread with the updates waiting at each pulse, oldest first
+     */
+    public UiUpdateQueue(Consumer<List<T>> apply) {
+        this.apply = apply;
+    }
+
+    /**
+     * Registers the metrics with JMX and starts applying updates at each pulse. Updates posted before this are kept
+     * and applied at the first pulse.
+     */
+    public void start() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        }
+        catch (JMException e) {
+            System.out.println("The GUI metrics could not be registered with JMX: " + e.getMessage());
+        }
+        timer = new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                drain();
+            }
+        };
+        timer.start();
+    }
+
+    /**
+     * Queues an update for the next pulse. Can be called from any thread.
+     * @param update the update
+     */
+    public void post(T update) {
+        pending.add(update);
+        updates.incrementAndGet();
+        int waiting = backlog.incrementAndGet();
+        if (waiting > maxBacklog.get()) {
+            maxBacklog.accumulateAndGet(waiting, Math::max);
+        }
+    }
+
+    /**
+     * Stops applying updates
+     */
+    public void stop() {
+        if (timer != null) {
+            timer.stop();
+        }
+    }
+
+    private void drain() {
+        if (backlog.get() == 0) {
+            return;
+        }
+        long start = System.nanoTime();
+        List<T> batch = new ArrayList<>(Math.min(backlog.get(), MAX_PER_PULSE));
+        T update;
+        while (batch.size() < MAX_PER_PULSE && (update = pending.poll()) != null) {
+            batch.add(update);
+        }
+        backlog.addAndGet(-batch.size());
+        apply.accept(batch);
+        drains.incrementAndGet();
+        drainTimes.record(System.nanoTime() - start);
+    }
+
+    @Override
+    public int getBacklog() {
+        return backlog.get();
+    }
+
+    @Override
+    public int getMaxBacklog() {
+        return maxBacklog.get();
+    }
+
+    @Override
+    public long getUpdates() {
+        return updates.get();
+    }
+
+    @Override
+    public long getDrains() {
+        return drains.get();
+    }
+
+    @Override
+    public double getUpdatesPerDrain() {
+        long count = drains.get();
+        return count == 0 ? 0 : (double) (updates.get() - backlog.get()) / count;
+    }
+
+    @Override
+    public double getDrainP50Micros() {
+        return drainTimes.snapshot().percentile(50) / 1000.0;
+    }
+
+    @Override
+    public double getDrainP99Micros() {
+        return drainTimes.snapshot().percentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getDrainMaxMicros() {
+        return drainTimes.snapshot().max() / 1000.0;
+    }
+
+    @Override
+    public String summary() {
+        LatencyHistogram.Snapshot times = drainTimes.snapshot();
+        return String.format("GUI updates %d in %d drains (%.1f each), backlog %d (max %d), " +
+                "drain p50 %.0f us p99 %.0f us max %.0f us", getUpdates(), getDrains(), getUpdatesPerDrain(),
+                getBacklog(), getMaxBacklog(), times.percentile(50) / 1000.0, times.percentile(99) / 1000.0,
+                times.max() / 1000.0);
+    }
+}
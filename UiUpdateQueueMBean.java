@@ -0,0 +1,37 @@
+/**
+ * The GUI's update queue as it is shown over JMX, for example in JConsole under "ChatClient". Totals and drain times
+ * are counted since the window opened.
+ */
+
+public interface UiUpdateQueueMBean {
+
+    /**
+     * @return the number of updates waiting for the next pulse
+     */
+    int getBacklog();
+
+    /**
+     * @return the most updates that have been waiting at once
+     */
+    int getMaxBacklog();
+
+    long getUpdates();
+
+    /**
+     * @return the number of pulses that had updates to apply
+     */
+    long getDrains();
+
+    double getUpdatesPerDrain();
+
+    double getDrainP50Micros();
+
+    double getDrainP99Micros();
+
+    double getDrainMaxMicros();
+
+    /**
+     * @return the metrics on one line
+     */
+    String summary();
+}
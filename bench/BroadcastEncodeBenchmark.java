@@ -0,0 +1,108 @@
+/**
+ * Compares the cost of one broadcast when every recipient encodes the message itself (a PrintWriter per client, as
+ * ChatServer used to do) with encoding it once into an EncodedMessage shared by every recipient. Recipients are
+ * in-memory sinks, so only the server's own CPU time and allocation are measured.
+ *
+ * Usage: java BroadcastEncodeBenchmark [message length]
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+public class BroadcastEncodeBenchmark {
+
+    private static final int WARMUP_ROUNDS = 200;
+    private static final int MEASURED_ROUNDS = 200;
+
+    private static com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws IOException {
+
+        int length = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        String message = "User: " + "x".repeat(Math.max(0, length - 6));
+
+        System.out.println("message length: " + length + " chars");
+        System.out.printf("%-10s %-22s %14s %16s%n", "clients", "path", "cpu us/bcast", "alloc B/bcast");
+        for (int clients : new int[]{1000, 10000}) {
+            report(clients, "printwriter-per-client", perClientEncode(clients, message));
+            report(clients, "encode-once-stream", encodeOnceStream(clients, message));
+            report(clients, "encode-once-buffer", encodeOnceBuffer(clients, message));
+        }
+    }
+
+    /**
+     * The old path: each client's autoflushing PrintWriter encodes the String itself
+     */
+    private static long[] perClientEncode(int clients, String message) {
+        PrintWriter[] writers = new PrintWriter[clients];
+        for (int i = 0; i < clients; i++) {
+            writers[i] = new PrintWriter(OutputStream.nullOutputStream(), true);
+        }
+        return measure(() -> {
+            for (PrintWriter writer : writers) {
+                writer.println(message);
+            }
+        });
+    }
+
+    /**
+     * The blocking and virtual-thread writers: encode once and write the same bytes to each client's stream
+     */
+    private static long[] encodeOnceStream(int clients, String message) {
+        OutputStream[] streams = new OutputStream[clients];
+        for (int i = 0; i < clients; i++) {
+            streams[i] = OutputStream.nullOutputStream();
+        }
+        return measure(() -> {
+            EncodedMessage encoded = EncodedMessage.chat(RoomRegistry.DEFAULT_ROOM, 0, message);
+            try {
+                for (OutputStream stream : streams) {
+                    encoded.writeTo(stream, EncodedMessage.Format.LINE);
+                }
+            }
+            catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    /**
+     * The NIO writers: encode once and give each client a read-only view of the same buffer
+     */
+    private static long[] encodeOnceBuffer(int clients, String message) {
+        return measure(() -> {
+            EncodedMessage encoded = EncodedMessage.chat(RoomRegistry.DEFAULT_ROOM, 0, message);
+            for (int i = 0; i < clients; i++) {
+                ByteBuffer view = encoded.buffer(EncodedMessage.Format.LINE);
+                //Stands in for channel.write draining the view
+                view.position(view.limit());
+            }
+        });
+    }
+
+    /**
+     * @return the average CPU time in nanoseconds and bytes allocated for one broadcast
+     */
+    private static long[] measure(Runnable broadcast) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            broadcast.run();
+        }
+        long threadId = Thread.currentThread().threadId();
+        long cpuBefore = threads.getCurrentThreadCpuTime();
+        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            broadcast.run();
+        }
+        long cpu = threads.getCurrentThreadCpuTime() - cpuBefore;
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        return new long[]{cpu / MEASURED_ROUNDS, allocated / MEASURED_ROUNDS};
+    }
+
+    private static void report(int clients, String path, long[] result) {
+        System.out.printf("%-10d %-22s %14.1f %16d%n", clients, path, result[0] / 1000.0, result[1]);
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * Stress test for the set of clients in ChatServer. Some threads connect and disconnect thousands of in-memory
+ * clients while others broadcast as fast as they can. Passes if nothing throws, every client that stayed connected
+ * received every broadcast, and the server's count of clients is right at the end.
+ *
+ * Usage: java ConnectionChurnStress [churn threads] [connections per churn thread] [broadcast threads] [broadcasts]
+ */
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ConnectionChurnStress {
+
+    private static final int STABLE_CLIENTS = 100;
+
+    public static void main(String[] args) throws InterruptedException {
+
+        int churnThreads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int churnPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+        int broadcastThreads = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int broadcasts = args.length > 3 ? Integer.parseInt(args[3]) : 5000;
+
+        ChatServer server = new ChatServer(ServerConfig.fromArgs(new String[]{"-joinhistory", "0"}));
+        ArrayList<SinkConnection> stable = new ArrayList<>();
+        for (int i = 0; i < STABLE_CLIENTS; i++) {
+            SinkConnection sink = new SinkConnection();
+            stable.add(sink);
+            server.addConnection(sink);
+        }
+
+        //The server prints a line for every connection and message, which is not wanted here
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        AtomicLong failures = new AtomicLong();
+        ArrayList<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < churnThreads; t++) {
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < churnPerThread; i++) {
+                    SinkConnection sink = new SinkConnection();
+                    server.addConnection(sink);
+                    server.removeConnection(sink);
+                }
+            }));
+        }
+        for (int t = 0; t < broadcastThreads; t++) {
+            int id = t;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < broadcasts; i++) {
+                    server.messageReceived(stable.get(0), "broadcaster" + id + ": message " + i);
+                }
+            }));
+        }
+
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.setUncaughtExceptionHandler((th, e) -> {
+                failures.incrementAndGet();
+                e.printStackTrace(console);
+            });
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        System.setOut(console);
+
+        long expected = (long) broadcastThreads * broadcasts;
+        long missed = 0;
+        for (SinkConnection sink : stable) {
+            missed += expected - sink.received.get();
+        }
+        boolean passed = failures.get() == 0 && missed == 0 && server.connectionCount() == STABLE_CLIENTS;
+
+        System.out.println("connections churned:   " + (long) churnThreads * churnPerThread);
+        System.out.println("broadcasts:            " + expected);
+        System.out.println("time (ms):             " + elapsed);
+        System.out.println("thread failures:       " + failures.get());
+        System.out.println("missed deliveries:     " + missed);
+        System.out.println("clients at end:        " + server.connectionCount() + " (expected " + STABLE_CLIENTS + ")");
+        System.out.println(passed ? "PASSED" : "FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+
+    /**
+     * An in-memory client that only counts what it is sent
+     */
+    private static class SinkConnection implements ClientConnection {
+
+        private AtomicLong received = new AtomicLong();
+
+        @Override
+        public void send(EncodedMessage message) {
+            received.incrementAndGet();
+        }
+
+        @Override
+        public void stream(Iterator<EncodedMessage> batches) {
+        }
+
+        @Override
+        public long getDroppedMessages() {
+            return 0;
+        }
+
+        @Override
+        public int queuedMessages() {
+            return 0;
+        }
+
+        @Override
+        public void finish() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,522 @@
+/**
+ * Measures the throughput of the server's hot paths in the same way as a JMH benchmark: every benchmark is run for
+ * a number of warmup iterations, whose results are thrown away, and then for a number of measured iterations of a
+ * fixed time, from one or more threads at once. Results are printed as a table and saved as JSON, one benchmark per
+ * line, so that a later run can be compared with this one.
+ *
+ * datastore.addMessage    threads adding messages to the same room
+ * datastore.getLast       threads reading the newest message of a room while another thread keeps adding to it
+ * fanout.messageReceived  one message read, stored and queued for every member of a room of in-memory clients
+ * ingest.line             a line from a client split into its name and text, stored and queued for its sender
+ * ingest.frame            the same for a MESSAGE frame
+ * parse.frames            frames read out of a buffer of bytes received from a client, with their text decoded
+ *
+ * Each run happens in this JVM rather than a fresh one, so benchmarks that run later may see code already compiled
+ * for earlier ones. Use -filter to run one benchmark on its own when that matters.
+ *
+ * Usage: java HotPathBenchmark [-quick] [-filter text] [-threads 1,4] [-out results.json] [-compare old.json]
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class HotPathBenchmark {
+
+    private static final int[] FANOUT_SINKS = {10, 1000, 10000};
+    private static final String MESSAGE = "bench: the quick brown fox jumps over the lazy dog, 64 characters";
+    private static final Pattern RESULT = Pattern.compile("\"id\": \"([^\"]+)\".*\"mean\": ([0-9.Ee+-]+)");
+
+    private static int warmupIterations = 3;
+    private static int measuredIterations = 5;
+    private static long iterationMillis = 1000;
+    //Results are folded into this so that the JIT cannot remove the work that produced them
+    private static volatile long blackhole;
+
+    /**
+     * One thread's share of a benchmark
+     */
+    interface Operation {
+
+        /**
+         * @param i how many times this thread has run the operation before
+         * @return any value that depends on the work done
+         */
+        long run(long i);
+    }
+
+    /**
+     * A benchmark with its parameters. Shared state is made in prepare, just before the benchmark runs, and each
+     * thread then gets its own Operation from setUp.
+     */
+    private abstract static class Benchmark {
+
+        private String name;
+        private String params;
+        private int threads;
+
+        Benchmark(String name, String params, int threads) {
+            this.name = name;
+            this.params = params;
+            this.threads = threads;
+        }
+
+        String id() {
+            return name + (params.isEmpty() ? "" : ":" + params) + ":threads=" + threads;
+        }
+
+        void prepare() {
+        }
+
+        abstract Operation setUp();
+
+        void tearDown() {
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        String filter = "";
+        String out = "bench-results.json";
+        String compare = null;
+        int[] threadCounts = {1, 4};
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-quick")) {
+                warmupIterations = 1;
+                measuredIterations = 3;
+                iterationMillis = 500;
+            }
+            else if (args[i].equals("-filter")) {
+                filter = args[++i];
+            }
+            else if (args[i].equals("-out")) {
+                out = args[++i];
+            }
+            else if (args[i].equals("-compare")) {
+                compare = args[++i];
+            }
+            else if (args[i].equals("-threads")) {
+                String[] counts = args[++i].split(",");
+                threadCounts = new int[counts.length];
+                for (int t = 0; t < counts.length; t++) {
+                    threadCounts[t] = Math.max(1, Integer.parseInt(counts[t].trim()));
+                }
+            }
+            else {
+                System.out.println("Invalid command line flag: " + args[i]);
+                return;
+            }
+        }
+
+        Map<String, Double> previous = compare == null ? Map.of() : readResults(compare);
+        //The server prints a line for every connection and message, which is not wanted here
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        List<Benchmark> benchmarks = new ArrayList<>();
+        for (int threads : threadCounts) {
+            benchmarks.add(addMessage(threads));
+        }
+        for (int threads : threadCounts) {
+            benchmarks.add(getLast(threads));
+        }
+        for (int sinks : FANOUT_SINKS) {
+            benchmarks.add(fanout(sinks));
+        }
+        benchmarks.add(ingestLine());
+        benchmarks.add(ingestFrame());
+        benchmarks.add(parseFrames());
+
+        console.printf("%-55s %14s %10s %12s%s%n", "benchmark", "ops/s", "+-", "ns/op",
+                previous.isEmpty() ? "" : "     change");
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"timestamp\": \"").append(Instant.now()).append("\",\n");
+        json.append("  \"java\": \"").append(System.getProperty("java.version")).append("\",\n");
+        json.append("  \"cpus\": ").append(Runtime.getRuntime().availableProcessors()).append(",\n");
+        json.append("  \"warmupIterations\": ").append(warmupIterations).append(",\n");
+        json.append("  \"measuredIterations\": ").append(measuredIterations).append(",\n");
+        json.append("  \"iterationMillis\": ").append(iterationMillis).append(",\n");
+        json.append("  \"benchmarks\": [\n");
+        boolean first = true;
+        for (Benchmark benchmark : benchmarks) {
+            if (!benchmark.id().contains(filter)) {
+                continue;
+            }
+            double[] results = run(benchmark);
+            double mean = mean(results);
+            double deviation = deviation(results, mean);
+            //The average time one thread spent on one operation
+            double nanosPerOp = 1e9 * benchmark.threads / mean;
+            String change = "";
+            Double before = previous.get(benchmark.id());
+            if (before != null) {
+                change = String.format(" %+9.1f%%", (mean - before) / before * 100);
+            }
+            console.printf("%-55s %14.0f %10.0f %12.1f%s%n", benchmark.id(), mean, deviation, nanosPerOp, change);
+
+            json.append(first ? "" : ",\n");
+            first = false;
+            json.append("    {\"id\": \"").append(benchmark.id()).append("\", \"threads\": ").append(benchmark.threads)
+                    .append(", \"unit\": \"ops/s\", \"mean\": ").append(String.format(Locale.ROOT, "%.1f", mean))
+                    .append(", \"stddev\": ").append(String.format(Locale.ROOT, "%.1f", deviation))
+                    .append(", \"nsPerOp\": ").append(String.format(Locale.ROOT, "%.1f", nanosPerOp))
+                    .append(", \"iterations\": [");
+            for (int i = 0; i < results.length; i++) {
+                json.append(i == 0 ? "" : ", ").append(String.format(Locale.ROOT, "%.1f", results[i]));
+            }
+            json.append("]}");
+        }
+        json.append("\n  ]\n}\n");
+        Files.writeString(Paths.get(out), json.toString());
+        System.setOut(console);
+        System.out.println("Results saved to " + out);
+    }
+
+    /**
+     * Runs the warmup and measured iterations of one benchmark
+     * @return the operations per second, from all threads together, of each measured iteration
+     */
+    private static double[] run(Benchmark benchmark) throws InterruptedException {
+        benchmark.prepare();
+        Operation[] operations = new Operation[benchmark.threads];
+        for (int t = 0; t < operations.length; t++) {
+            operations[t] = benchmark.setUp();
+        }
+        long[] done = new long[benchmark.threads];
+        double[] results = new double[measuredIterations];
+        for (int iteration = 0; iteration < warmupIterations + measuredIterations; iteration++) {
+            AtomicBoolean running = new AtomicBoolean(true);
+            AtomicLong operationCount = new AtomicLong();
+            CountDownLatch ready = new CountDownLatch(benchmark.threads);
+            CountDownLatch go = new CountDownLatch(1);
+            Thread[] threads = new Thread[benchmark.threads];
+            for (int t = 0; t < threads.length; t++) {
+                int id = t;
+                threads[t] = new Thread(() -> {
+                    Operation operation = operations[id];
+                    long i = done[id];
+                    long result = 0;
+                    ready.countDown();
+                    try {
+                        go.await();
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                    while (running.get()) {
+                        result ^= operation.run(i++);
+                    }
+                    operationCount.addAndGet(i - done[id]);
+                    done[id] = i;
+                    blackhole ^= result;
+                }, "bench-" + t);
+                threads[t].start();
+            }
+            ready.await();
+            long start = System.nanoTime();
+            go.countDown();
+            Thread.sleep(iterationMillis);
+            running.set(false);
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            if (iteration >= warmupIterations) {
+                results[iteration - warmupIterations] = operationCount.get() / seconds;
+            }
+        }
+        benchmark.tearDown();
+        return results;
+    }
+
+    /**
+     * Every thread adds to the same room, as every client in a room does
+     */
+    private static Benchmark addMessage(int threads) {
+        return new Benchmark("datastore.addMessage", "", threads) {
+
+            private DataStore dataStore;
+
+            @Override
+            void prepare() {
+                dataStore = newDataStore();
+            }
+
+            @Override
+            Operation setUp() {
+                return i -> dataStore.addMessage("general", MESSAGE);
+            }
+        };
+    }
+
+    /**
+     * Every thread reads the newest message, as each broadcast does, while one more thread keeps adding messages
+     */
+    private static Benchmark getLast(int threads) {
+        return new Benchmark("datastore.getLast", "", threads) {
+
+            private DataStore dataStore;
+            private AtomicBoolean writing = new AtomicBoolean(true);
+
+            @Override
+            void prepare() {
+                dataStore = newDataStore();
+                dataStore.addMessage("general", MESSAGE);
+                Thread writer = new Thread(() -> {
+                    while (writing.get()) {
+                        dataStore.addMessage("general", MESSAGE);
+                        Thread.onSpinWait();
+                    }
+                }, "bench-writer");
+                writer.setDaemon(true);
+                writer.start();
+            }
+
+            @Override
+            Operation setUp() {
+                return i -> {
+                    String message = dataStore.getMessage("general", dataStore.lastSequence("general"));
+                    return message == null ? 0 : message.length();
+                };
+            }
+
+            @Override
+            void tearDown() {
+                writing.set(false);
+            }
+        };
+    }
+
+    /**
+     * One sender in a room with the given number of members, each of which queues what it is sent like a real
+     * connection does
+     */
+    private static Benchmark fanout(int sinks) {
+        return new Benchmark("fanout.messageReceived", "sinks=" + sinks, 1) {
+
+            private ChatServer server;
+            private SinkConnection sender;
+
+            @Override
+            void prepare() {
+                server = newServer();
+                sender = new SinkConnection();
+                server.addConnection(sender);
+                for (int i = 1; i < sinks; i++) {
+                    server.addConnection(new SinkConnection());
+                }
+            }
+
+            @Override
+            Operation setUp() {
+                return i -> {
+                    server.messageReceived(sender, MESSAGE);
+                    return i;
+                };
+            }
+
+            @Override
+            void tearDown() {
+                server = null;
+            }
+        };
+    }
+
+    /**
+     * A line client alone in its room, so the work is reading the line rather than sending it on
+     */
+    private static Benchmark ingestLine() {
+        return new Benchmark("ingest.line", "", 1) {
+
+            private ChatServer server;
+            private SinkConnection sender;
+
+            @Override
+            void prepare() {
+                server = newServer();
+                sender = new SinkConnection();
+                server.addConnection(sender);
+            }
+
+            @Override
+            Operation setUp() {
+                return i -> {
+                    server.messageReceived(sender, MESSAGE);
+                    return i;
+                };
+            }
+        };
+    }
+
+    /**
+     * A framed client alone in its room. The frame is read out of its bytes each time, as a connection does.
+     */
+    private static Benchmark ingestFrame() {
+        return new Benchmark("ingest.frame", "", 1) {
+
+            private ChatServer server;
+            private SinkConnection sender;
+
+            @Override
+            void prepare() {
+                server = newServer();
+                sender = new SinkConnection();
+                server.addConnection(sender);
+            }
+
+            @Override
+            Operation setUp() {
+                ByteBuffer buffer = ByteBuffer.wrap(messageFrame());
+                return i -> {
+                    buffer.rewind();
+                    try {
+                        server.frameReceived(sender, "bench", ChatProtocol.readFrame(buffer));
+                    }
+                    catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                    return i;
+                };
+            }
+        };
+    }
+
+    /**
+     * 64 KB of MESSAGE frames, as a NIO connection might read in one go. Each operation is one frame.
+     */
+    private static Benchmark parseFrames() {
+        return new Benchmark("parse.frames", "", 1) {
+
+            private ByteBuffer frames;
+
+            @Override
+            void prepare() {
+                byte[] frame = messageFrame();
+                int count = OutboundQueue.MAX_WRITE_LENGTH / frame.length;
+                frames = ByteBuffer.allocate(count * frame.length);
+                for (int i = 0; i < count; i++) {
+                    frames.put(frame);
+                }
+                frames.flip();
+            }
+
+            @Override
+            Operation setUp() {
+                ByteBuffer buffer = frames.duplicate();
+                return i -> {
+                    try {
+                        ChatProtocol.Frame next = ChatProtocol.readFrame(buffer);
+                        if (next == null) {
+                            buffer.rewind();
+                            next = ChatProtocol.readFrame(buffer);
+                        }
+                        return next.text(0).length();
+                    }
+                    catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * @return MESSAGE as a framed client sends it, without the name, which is only sent in HELLO
+     */
+    private static byte[] messageFrame() {
+        return ChatProtocol.frame(ChatProtocol.MESSAGE, new byte[0], MESSAGE.substring(MESSAGE.indexOf(": ") + 2));
+    }
+
+    private static DataStore newDataStore() {
+        return new DataStore(65536, 64L * 1024 * 1024, 0);
+    }
+
+    private static ChatServer newServer() {
+        return new ChatServer(ServerConfig.fromArgs(new String[]{"-joinhistory", "0"}));
+    }
+
+    /**
+     * Reads the mean of each benchmark from a file saved by an earlier run
+     * @param file the file
+     * @return the mean operations per second of each benchmark, by id
+     * @throws IOException if the file cannot be read
+     */
+    private static Map<String, Double> readResults(String file) throws IOException {
+        Map<String, Double> results = new HashMap<>();
+        for (String line : Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8)) {
+            Matcher matcher = RESULT.matcher(line);
+            if (matcher.find()) {
+                results.put(matcher.group(1), Double.parseDouble(matcher.group(2)));
+            }
+        }
+        return results;
+    }
+
+    private static double mean(double[] values) {
+        double sum = 0;
+        for (double value : values) {
+            sum += value;
+        }
+        return sum / values.length;
+    }
+
+    private static double deviation(double[] values, double mean) {
+        double sum = 0;
+        for (double value : values) {
+            sum += (value - mean) * (value - mean);
+        }
+        return values.length > 1 ? Math.sqrt(sum / (values.length - 1)) : 0;
+    }
+
+    /**
+     * An in-memory client with a real outbound queue, so a broadcast costs what it does for a connected client.
+     * Nothing reads the queue, so once it is full each new message drops the oldest.
+     */
+    private static class SinkConnection implements ClientConnection {
+
+        private OutboundQueue queue = new OutboundQueue(1024, OutboundQueue.SlowConsumerPolicy.DROP_OLDEST);
+
+        @Override
+        public void send(EncodedMessage message) {
+            queue.offer(message);
+        }
+
+        @Override
+        public void stream(Iterator<EncodedMessage> batches) {
+        }
+
+        @Override
+        public long getDroppedMessages() {
+            return 0;
+        }
+
+        @Override
+        public int queuedMessages() {
+            return queue.size();
+        }
+
+        @Override
+        public void finish() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
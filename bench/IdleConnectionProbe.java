@@ -0,0 +1,99 @@
+/**
+ * Measures what idle connections cost the server in each mode. Starts a ChatServer inside this JVM, opens the
+ * requested number of connections that never send anything, and reports the live thread count and heap in use.
+ *
+ * Usage: java IdleConnectionProbe <connections> [server flags, e.g. -vt or -nio 2]
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class IdleConnectionProbe {
+
+    public static void main(String[] args) throws Exception {
+
+        int connections = Integer.parseInt(args[0]);
+        int port = 15100;
+        ArrayList<String> serverArgs = new ArrayList<>(Arrays.asList("-csp", String.valueOf(port)));
+        serverArgs.addAll(Arrays.asList(args).subList(1, args.length));
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+        //The server prints a line for every connection, which is not wanted here
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        Thread server = new Thread(() -> new ChatServer(ServerConfig.fromArgs(serverArgs.toArray(new String[0]))).start());
+        server.setDaemon(true);
+        server.start();
+        Thread.sleep(500);
+
+        int threadsBefore = threads.getThreadCount();
+        long heapBefore = usedHeap(memory);
+        long rssBefore = residentMemory();
+        long start = System.nanoTime();
+
+        ArrayList<Socket> sockets = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            Socket socket = new Socket();
+            socket.connect(new InetSocketAddress("localhost", port), 10000);
+            sockets.add(socket);
+        }
+        //Give the server time to set up every connection
+        Thread.sleep(1000 + connections / 5);
+        long elapsed = System.nanoTime() - start;
+
+        int threadsAfter = threads.getThreadCount();
+        long heapAfter = usedHeap(memory);
+        System.setOut(console);
+        long rssAfter = residentMemory();
+
+        System.out.println("server flags:          " + String.join(" ", serverArgs));
+        System.out.println("idle connections:      " + connections);
+        System.out.println("platform threads:      " + threadsBefore + " -> " + threadsAfter);
+        System.out.println("heap used (MB):        " + heapBefore / 1048576 + " -> " + heapAfter / 1048576);
+        System.out.println("heap per connection:   " + (heapAfter - heapBefore) / connections + " bytes");
+        System.out.println("resident memory (MB):  " + rssBefore / 1048576 + " -> " + rssAfter / 1048576);
+        System.out.println("setup time (ms):       " + elapsed / 1000000);
+
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        System.exit(0);
+    }
+
+    private static long usedHeap(MemoryMXBean memory) throws InterruptedException {
+        System.gc();
+        Thread.sleep(200);
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * Platform thread stacks live outside the heap, so the resident set size is reported as well (Linux only)
+     * @return the resident set size of this process in bytes, or 0 if it cannot be read
+     */
+    private static long residentMemory() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        }
+        catch (IOException e) {
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ * Checks that the idle checks scale to a large number of connections. Watches the requested number of pretend
+ * connections with IdleMonitors sharing one TimerWheel, keeps a tenth of them busy, never answers a ping from the rest,
+ * and reports how many were pinged and disconnected, how long starting them took and how many threads were used.
+ *
+ * Usage: java IdleMonitorScaleProbe [connections, default 100000] [heartbeat seconds, default 2]
+ */
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class IdleMonitorScaleProbe {
+
+    public static void main(String[] args) throws Exception {
+
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int heartbeatSeconds = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        int threadsBefore = threads.getThreadCount();
+        //Each monitor prints a line when it disconnects, which is not wanted here
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        TimerWheel timers = new TimerWheel(100, 512, "idle-timers");
+        AtomicLong pings = new AtomicLong();
+        AtomicLong closes = new AtomicLong();
+        ArrayList<IdleMonitor> monitors = new ArrayList<>();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            IdleMonitor monitor = new IdleMonitor(timers, heartbeatSeconds * 1000L, 0);
+            monitor.start(pings::incrementAndGet, closes::incrementAndGet);
+            monitors.add(monitor);
+        }
+        long startNanos = System.nanoTime() - start;
+
+        //The busy tenth reads something every 100 ms, which must cost nothing more than recording the time
+        long end = System.currentTimeMillis() + heartbeatSeconds * 2500L;
+        long activityCalls = 0;
+        while (System.currentTimeMillis() < end) {
+            for (int i = 0; i < connections; i += 10) {
+                monitors.get(i).activity();
+                activityCalls++;
+            }
+            Thread.sleep(100);
+        }
+        int busy = (connections + 9) / 10;
+        System.setOut(console);
+
+        System.out.println("Connections:       " + connections + " (" + busy + " busy)");
+        System.out.printf("Start all:         %.1f ms (%.0f ns each)%n", startNanos / 1e6,
+                (double) startNanos / connections);
+        System.out.println("Activity calls:    " + activityCalls);
+        System.out.println("Pings sent:        " + pings.get() + " (expected " + (connections - busy) + ")");
+        System.out.println("Disconnected:      " + closes.get() + " (expected " + (connections - busy) + ")");
+        System.out.println("Threads added:     " + (threads.getThreadCount() - threadsBefore));
+        timers.stop();
+    }
+}
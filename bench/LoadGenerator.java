@@ -0,0 +1,318 @@
+/**
+ * Simulates many chat users against a running ChatServer from a single JVM. Each simulated client speaks the frame
+ * protocol through ChatProtocol, in the same way as ChatClient, with a virtual thread reading from its socket and
+ * another sending messages at a fixed rate. Every message carries the time it was due to be sent, so every client
+ * that receives it can work out how long it took to arrive. The time it was due, rather than the time it was actually
+ * sent, is used so that a server that holds up the senders cannot hide its own delay from the results.
+ * Clients are spread across rooms, and every member of a room, including the sender, receives each message sent to
+ * it. The number of messages received each second is printed while the test runs, and the delivery latency
+ * percentiles and throughput at the end. Latencies are only recorded after the warmup.
+ *
+ * Usage: java LoadGenerator [-host localhost] [-port 14001] [-clients 1000] [-rate 1] [-size 100] [-rooms 1]
+ *                           [-duration 30] [-warmup 5] [-compress]
+ * -rate is in messages per second for each client, -size in bytes of text, -duration and -warmup in seconds
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class LoadGenerator {
+
+    private static final String NAME_PREFIX = "load";
+    //How long to wait for messages still on their way once the senders have stopped
+    private static final long DRAIN_MILLIS = 2000;
+
+    private static String host = "localhost";
+    private static int port = 14001;
+    private static int clientCount = 1000;
+    private static double rate = 1;
+    private static int size = 100;
+    private static int roomCount = 1;
+    private static int durationSeconds = 30;
+    private static int warmupSeconds = 5;
+    private static boolean compress;
+
+    private static LongAdder sent = new LongAdder();
+    private static LongAdder received = new LongAdder();
+    private static LongAdder receivedBytes = new LongAdder();
+    //The number of deliveries the messages sent should lead to: one for each member of the room sent to
+    private static LongAdder expected = new LongAdder();
+    private static AtomicLong disconnected = new AtomicLong();
+    private static LatencyHistogram latency = new LatencyHistogram();
+    private static volatile long recordFrom = Long.MAX_VALUE;
+    private static volatile boolean sending = true;
+    //Set when the server refuses to set the clients up as asked
+    private static volatile String setupError;
+
+    public static void main(String[] args) throws Exception {
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-host" -> host = args[++i];
+                case "-port" -> port = Integer.parseInt(args[++i]);
+                case "-clients" -> clientCount = Math.max(1, Integer.parseInt(args[++i]));
+                case "-rate" -> rate = Double.parseDouble(args[++i]);
+                case "-size" -> size = Math.max(24, Integer.parseInt(args[++i]));
+                case "-rooms" -> roomCount = Math.max(1, Integer.parseInt(args[++i]));
+                case "-duration" -> durationSeconds = Math.max(1, Integer.parseInt(args[++i]));
+                case "-warmup" -> warmupSeconds = Math.max(0, Integer.parseInt(args[++i]));
+                case "-compress" -> compress = true;
+                default -> {
+                    System.out.println("Invalid command line flag: " + args[i]);
+                    return;
+                }
+            }
+        }
+
+        List<Client> clients = new ArrayList<>();
+        long connectStart = System.nanoTime();
+        for (int i = 0; i < clientCount; i++) {
+            try {
+                clients.add(new Client(i));
+            }
+            catch (IOException e) {
+                System.out.println("Could not connect client " + i + ": " + e.getMessage());
+                break;
+            }
+        }
+        int[] members = new int[roomCount];
+        for (Client client : clients) {
+            members[client.room]++;
+        }
+        //Every client waits for the rest to join their rooms, so early messages are not sent to half a room
+        CountDownLatch joined = new CountDownLatch(clients.size());
+        for (Client client : clients) {
+            client.start(members[client.room], joined);
+        }
+        joined.await(30, TimeUnit.SECONDS);
+        if (setupError != null) {
+            System.out.println(setupError);
+            clients.forEach(Client::close);
+            return;
+        }
+        System.out.printf("Connected %d clients in %.1f s%n", clients.size(), (System.nanoTime() - connectStart) / 1e9);
+
+        long start = System.nanoTime();
+        recordFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        for (Client client : clients) {
+            client.startSending(start);
+        }
+        long lastReceived = 0;
+        long lastSent = 0;
+        for (int second = 1; second <= warmupSeconds + durationSeconds; second++) {
+            LockSupport.parkNanos(start + TimeUnit.SECONDS.toNanos(second) - System.nanoTime());
+            long nowSent = sent.sum();
+            long nowReceived = received.sum();
+            System.out.printf("%3d s%s  sent %8d/s  received %9d/s  disconnected %d%n", second,
+                    second <= warmupSeconds ? " (warmup)" : "         ", nowSent - lastSent,
+                    nowReceived - lastReceived, disconnected.get());
+            lastSent = nowSent;
+            lastReceived = nowReceived;
+        }
+        LatencyHistogram.Snapshot measured = latency.snapshot();
+        long measuredReceived = measured.count();
+        sending = false;
+        Thread.sleep(DRAIN_MILLIS);
+        for (Client client : clients) {
+            client.close();
+        }
+
+        System.out.println();
+        System.out.printf("Clients:    %d in %d room(s), %.1f messages/s each, %d bytes of text%n", clients.size(),
+                roomCount, rate, size);
+        System.out.printf("Sent:       %d messages (%.0f/s)%n", sent.sum(),
+                sent.sum() / (double) (warmupSeconds + durationSeconds));
+        System.out.printf("Received:   %d of %d expected deliveries (%.2f%%), %.1f MB%n", received.sum(),
+                expected.sum(), expected.sum() == 0 ? 0 : 100.0 * received.sum() / expected.sum(),
+                receivedBytes.sum() / 1e6);
+        System.out.printf("Throughput: %.0f deliveries/s after warmup%n", measuredReceived / (double) durationSeconds);
+        System.out.printf("Latency:    p50 %.2f ms  p90 %.2f ms  p99 %.2f ms  p99.9 %.2f ms  max %.2f ms%n",
+                measured.percentile(50) / 1e6, measured.percentile(90) / 1e6, measured.percentile(99) / 1e6,
+                measured.percentile(99.9) / 1e6, measured.max() / 1e6);
+        System.out.println("Disconnected: " + disconnected.get());
+    }
+
+    /**
+     * One simulated user
+     */
+    private static class Client {
+
+        private int id;
+        private int room;
+        private Socket socket;
+        private DataInputStream in;
+        private OutputStream out;
+        //The sender and the reader, which answers pings, both write
+        private ReentrantLock writeLock = new ReentrantLock();
+        private int roomMembers;
+
+        /**
+         * Connects and completes the HELLO and WELCOME handshake
+         * @param id the client's number, which also decides its room
+         * @throws IOException if the server cannot be reached or does not speak the frame protocol
+         */
+        Client(int id) throws IOException {
+            this.id = id;
+            this.room = id % roomCount;
+            socket = new Socket();
+            socket.connect(new InetSocketAddress(host, port), 10000);
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new BufferedOutputStream(socket.getOutputStream());
+            ChatProtocol.writeHello(out, NAME_PREFIX + id, compress ? ChatProtocol.FLAG_COMPRESS : 0);
+            ChatProtocol.Frame welcome = ChatProtocol.readFrame(in);
+            if (welcome.getType() != ChatProtocol.WELCOME) {
+                throw new IOException("The server did not answer HELLO");
+            }
+        }
+
+        /**
+         * Moves the client from the default room to its own room, unless that is its room, and starts reading
+         * @param roomMembers the number of clients in the same room
+         * @param joined counted down once the server has confirmed the client is only in its room
+         */
+        void start(int roomMembers, CountDownLatch joined) throws IOException {
+            this.roomMembers = roomMembers;
+            if (room > 0) {
+                write(ChatProtocol.frame(ChatProtocol.MESSAGE, new byte[0], "/join load-" + room));
+                write(ChatProtocol.frame(ChatProtocol.MESSAGE, new byte[0], "/leave " + RoomRegistry.DEFAULT_ROOM));
+            }
+            else {
+                joined.countDown();
+            }
+            Thread.ofVirtual().name("reader-" + id).start(() -> read(joined));
+        }
+
+        /**
+         * Starts sending at the client's rate. Clients start at different points of the first interval, so the
+         * messages are spread out rather than sent all at once.
+         * @param start the System.nanoTime the test started at
+         */
+        void startSending(long start) {
+            long interval = (long) (1e9 / rate);
+            long first = start + interval * id / clientCount;
+            String padding = "x".repeat(size - 20);
+            Thread.ofVirtual().name("sender-" + id).start(() -> {
+                long due = first;
+                while (sending) {
+                    LockSupport.parkNanos(due - System.nanoTime());
+                    if (!sending) {
+                        return;
+                    }
+                    //The padding keeps every message the same length whatever the time stamp's length
+                    String text = String.format("%019d ", due) + padding;
+                    try {
+                        write(ChatProtocol.frame(ChatProtocol.MESSAGE, new byte[0], text));
+                    }
+                    catch (IOException e) {
+                        return;
+                    }
+                    sent.increment();
+                    expected.add(roomMembers);
+                    due += interval;
+                }
+            });
+        }
+
+        private void write(byte[] frame) throws IOException {
+            writeLock.lock();
+            try {
+                out.write(frame);
+                out.flush();
+            }
+            finally {
+                writeLock.unlock();
+            }
+        }
+
+        private void read(CountDownLatch joined) {
+            try {
+                while (true) {
+                    handle(ChatProtocol.readFrame(in), joined);
+                }
+            }
+            catch (IOException e) {
+                if (sending) {
+                    disconnected.incrementAndGet();
+                }
+            }
+        }
+
+        private void handle(ChatProtocol.Frame frame, CountDownLatch joined) throws IOException {
+            switch (frame.getType()) {
+                case ChatProtocol.MESSAGE -> delivered(frame);
+                case ChatProtocol.COMPRESSED -> {
+                    ByteBuffer frames = ChatProtocol.decompress(frame);
+                    ChatProtocol.Frame inner;
+                    while ((inner = ChatProtocol.readFrame(frames)) != null) {
+                        handle(inner, joined);
+                    }
+                }
+                case ChatProtocol.PING -> write(ChatProtocol.frame(ChatProtocol.PONG, ChatProtocol.sequencePrefix(
+                        frame.getLong(0)), null));
+                case ChatProtocol.NOTICE -> {
+                    String notice = frame.text(0);
+                    if (notice.startsWith("No more rooms")) {
+                        setupError = "The server would not make " + roomCount + " rooms. Start it with a higher " +
+                                "-maxrooms or use fewer -rooms.";
+                    }
+                    if (room > 0 && notice.startsWith("You have left #" + RoomRegistry.DEFAULT_ROOM)) {
+                        joined.countDown();
+                    }
+                }
+                default -> {
+                }
+            }
+        }
+
+        /**
+         * Records how long a message took from being due to be sent to arriving here
+         * @param frame a MESSAGE frame: sequence number, then "name: time text", after "#room " outside the default
+         *              room
+         */
+        private void delivered(ChatProtocol.Frame frame) {
+            long now = System.nanoTime();
+            received.increment();
+            receivedBytes.add(frame.length());
+            String text = frame.text(8);
+            if (text.startsWith("#")) {
+                text = text.substring(text.indexOf(' ') + 1);
+            }
+            int timeAt = text.indexOf(": ") + 2;
+            //Messages from anyone but another simulated client, such as a user watching the test, are not timed
+            if (!text.startsWith(NAME_PREFIX) || text.length() < timeAt + 19) {
+                return;
+            }
+            try {
+                long due = Long.parseLong(text, timeAt, timeAt + 19, 10);
+                if (due >= recordFrom) {
+                    latency.record(now - due);
+                }
+            }
+            catch (NumberFormatException e) {
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            }
+            catch (IOException e) {
+            }
+        }
+    }
+}